@@ -0,0 +1,80 @@
+package io.compgen.cgsplice.junction;
+
+import io.compgen.ngsutils.bam.Strand;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Seeded synthetic data for the benchmarks. Junctions are clustered into genes, with several 
+ * alternative junctions per donor (like a real junction-count file).
+ * 
+ * @author mbreese
+ *
+ */
+public class BenchmarkData {
+    public static final long SEED = 42;
+    
+    public static List<JunctionKey> junctionKeys(int count, Random rand) {
+        List<JunctionKey> keys = new ArrayList<JunctionKey>(count);
+        int chrom = 1;
+        int pos = 10000;
+        while (keys.size() < count) {
+            if (rand.nextInt(2000) == 0) {
+                chrom++;
+                pos = 10000;
+            }
+            pos += 1000 + rand.nextInt(20000);
+            Strand strand = rand.nextBoolean() ? Strand.PLUS : Strand.MINUS;
+            int donor = pos;
+            int fanout = 1 + rand.nextInt(4);
+            for (int i=0; i<fanout && keys.size() < count; i++) {
+                int acceptor = donor + 100 + rand.nextInt(5000);
+                keys.add(new JunctionKey("chr"+chrom+":"+donor+"-"+acceptor, strand));
+            }
+        }
+        return keys;
+    }
+
+    public static JunctionCounts junctionCounts(int samples, Random rand) {
+        JunctionCounts counts = new JunctionCounts(samples);
+        int[] totals = new int[samples];
+        for (int i=0; i<samples; i++) {
+            int count = rand.nextInt(200);
+            counts.addCount(i, count);
+            totals[i] = count + rand.nextInt(200);
+        }
+        counts.donor_total = totals;
+        counts.acceptor_total = totals;
+        return counts;
+    }
+
+    public static Integer[] groups(int samples) {
+        Integer[] groups = new Integer[samples];
+        for (int i=0; i<samples; i++) {
+            groups[i] = (i < samples / 2) ? 1 : 2;
+        }
+        return groups;
+    }
+
+    /**
+     * Writes a junction-count file (junction, strand, count, avg-edit-distance).
+     */
+    public static File junctionCountFile(int rows, Random rand) throws IOException {
+        File file = File.createTempFile("cgsplice-bench", ".txt");
+        file.deleteOnExit();
+        BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+        writer.write("## junction-count\n");
+        writer.write("junction\tstrand\tcount\tavg-edit-distance\n");
+        for (JunctionKey key: junctionKeys(rows, rand)) {
+            writer.write(key.name + "\t" + key.strand + "\t" + (1 + rand.nextInt(500)) + "\t" + (rand.nextInt(200) / 100.0) + "\n");
+        }
+        writer.close();
+        return file;
+    }
+}
@@ -0,0 +1,71 @@
+package io.compgen.cgsplice.junction;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading a junction-count file into JunctionDiff, and enumerating group permutations.
+ * 
+ * @author mbreese
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JunctionDiffBenchmark {
+    
+    @State(Scope.Benchmark)
+    public static class CountFile {
+        @Param({"100000"})
+        public int rows;
+        
+        public File file;
+        
+        @Setup
+        public void setup() throws IOException {
+            file = BenchmarkData.junctionCountFile(rows, new Random(BenchmarkData.SEED));
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Groups {
+        @Param({"6", "12", "16"})
+        public int samples;
+        
+        public Integer[] groups;
+        
+        @Setup
+        public void setup() {
+            groups = BenchmarkData.groups(samples);
+        }
+    }
+
+    @Benchmark
+    public JunctionDiff readFile(CountFile state) throws IOException, JunctionDiffException {
+        JunctionDiff diff = new JunctionDiff();
+        diff.readFile(state.file.getAbsolutePath(), 1, 0);
+        return diff;
+    }
+
+    @Benchmark
+    public List<Integer[]> permuteGroups(Groups state) {
+        return JunctionDiff.permuteGroups(state.groups);
+    }
+}
@@ -0,0 +1,67 @@
+package io.compgen.cgsplice.junction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JunctionKey.compareTo is called for every TreeMap lookup while files are read, and for
+ * sorting junctions.
+ * 
+ * @author mbreese
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JunctionKeyBenchmark {
+    @Param({"10000", "100000"})
+    public int size;
+
+    private JunctionKey[] keys;
+    private List<JunctionKey> shuffled;
+
+    @Setup
+    public void setup() {
+        Random rand = new Random(BenchmarkData.SEED);
+        List<JunctionKey> list = BenchmarkData.junctionKeys(size, rand);
+        keys = list.toArray(new JunctionKey[list.size()]);
+        shuffled = new ArrayList<JunctionKey>(list);
+        Collections.shuffle(shuffled, rand);
+    }
+
+    /**
+     * Neighboring keys (mostly on the same chromosome, like TreeMap lookups)
+     */
+    @Benchmark
+    public void compareTo(Blackhole bh) {
+        for (int i=1; i<keys.length; i++) {
+            bh.consume(keys[i-1].compareTo(keys[i]));
+        }
+    }
+
+    @Benchmark
+    public List<JunctionKey> sort() {
+        List<JunctionKey> copy = new ArrayList<JunctionKey>(shuffled);
+        Collections.sort(copy);
+        return copy;
+    }
+}
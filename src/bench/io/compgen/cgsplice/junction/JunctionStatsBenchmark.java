@@ -0,0 +1,81 @@
+package io.compgen.cgsplice.junction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Scoring junctions against permuted groupings: JunctionCounts.calcStats for each 
+ * (junction, grouping) pair vs. the blocked PermutationKernel.
+ * 
+ * @author mbreese
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JunctionStatsBenchmark {
+    @Param({"6", "12"})
+    public int samples;
+
+    @Param({"1000"})
+    public int junctions;
+
+    private JunctionCounts[] counts;
+    private List<int[]> countList;
+    private List<int[]> totalList;
+    private List<Integer[]> groupings;
+    private PermutationKernel kernel;
+    private double[] scores;
+
+    @Setup
+    public void setup() {
+        Random rand = new Random(BenchmarkData.SEED);
+        counts = new JunctionCounts[junctions];
+        countList = new ArrayList<int[]>();
+        totalList = new ArrayList<int[]>();
+        for (int i=0; i<junctions; i++) {
+            counts[i] = BenchmarkData.junctionCounts(samples, rand);
+            countList.add(counts[i].counts);
+            totalList.add(counts[i].donor_total);
+        }
+        groupings = JunctionDiff.permuteGroups(BenchmarkData.groups(samples));
+        kernel = new PermutationKernel(groupings, samples);
+        scores = new double[PermutationKernel.BLOCK_SIZE * groupings.size()];
+    }
+
+    @Benchmark
+    public void calcStats(Blackhole bh) {
+        for (JunctionCounts j: counts) {
+            for (Integer[] group: groupings) {
+                bh.consume(j.calcStats(group, true).tScore);
+            }
+        }
+    }
+
+    @Benchmark
+    public void kernel(Blackhole bh) {
+        for (int from=0; from<junctions; from+=PermutationKernel.BLOCK_SIZE) {
+            int to = Math.min(junctions, from + PermutationKernel.BLOCK_SIZE);
+            kernel.scoreBlock(countList, totalList, from, to, scores);
+            bh.consume(scores);
+        }
+    }
+}
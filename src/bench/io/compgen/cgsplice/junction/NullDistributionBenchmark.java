@@ -0,0 +1,77 @@
+package io.compgen.cgsplice.junction;
+
+import io.compgen.cgsplice.stats.ExactNullDistribution;
+import io.compgen.ngsutils.support.stats.PermutedNullDistribution;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * P-value lookups (one per output row) against a null of permuted t-scores: the ngsutils 
+ * PermutedNullDistribution (linear scan) vs. ExactNullDistribution (binary search).
+ * 
+ * @author mbreese
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NullDistributionBenchmark {
+    @Param({"100000", "1000000"})
+    public int size;
+
+    private static final int TESTS = 1000;
+    
+    private PermutedNullDistribution permuted;
+    private ExactNullDistribution exact;
+    private double[] tests;
+
+    @Setup
+    public void setup() {
+        Random rand = new Random(BenchmarkData.SEED);
+        permuted = new PermutedNullDistribution();
+        exact = new ExactNullDistribution(size);
+        for (int i=0; i<size; i++) {
+            double score = rand.nextGaussian() * 2;
+            permuted.add(score);
+            exact.add(score);
+        }
+        permuted.set();
+        exact.set();
+        
+        tests = new double[TESTS];
+        for (int i=0; i<TESTS; i++) {
+            tests[i] = rand.nextGaussian() * 3;
+        }
+    }
+
+    @Benchmark
+    public void permutedPvalue(Blackhole bh) {
+        for (double test: tests) {
+            bh.consume(permuted.pvalue(test));
+        }
+    }
+
+    @Benchmark
+    public void exactPvalue(Blackhole bh) {
+        for (double test: tests) {
+            bh.consume(exact.pvalue(test));
+        }
+    }
+}
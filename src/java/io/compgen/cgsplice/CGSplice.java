@@ -2,10 +2,13 @@ package io.compgen.cgsplice;
 
 
 import io.compgen.cgsplice.cli.BamStats;
+import io.compgen.cgsplice.cli.Bench;
 import io.compgen.cgsplice.cli.CombineEvents;
 import io.compgen.cgsplice.cli.FastaJunctions;
 import io.compgen.cgsplice.cli.JunctionCount;
 import io.compgen.cgsplice.cli.SpliceDiff;
+import io.compgen.cgsplice.cli.SpliceGather;
+import io.compgen.cgsplice.cli.SynthData;
 import io.compgen.cmdline.Help;
 import io.compgen.cmdline.License;
 import io.compgen.cmdline.MainBuilder;
@@ -36,14 +39,17 @@ public class CGSplice {
 		.setHelpHeader("cgsplice - Computational Genomics Splicing Tools\n---------------------------------------")
 		.setDefaultUsage("Usage: cgsplice cmd [options]")
 		.setHelpFooter("http://compgen.io/cgsplice\n"+getVersion())
-		.setCategoryOrder(new String[] { "splicing", "help"})
+		.setCategoryOrder(new String[] { "splicing", "benchmark", "help"})
 		.addCommand(Help.class)
 		.addCommand(License.class)
         .addCommand(JunctionCount.class)
         .addCommand(CombineEvents.class)
         .addCommand(SpliceDiff.class)
+        .addCommand(SpliceGather.class)
         .addCommand(BamStats.class)
         .addCommand(FastaJunctions.class)
+        .addCommand(SynthData.class)
+        .addCommand(Bench.class)
 		.findAndRun(args);
 	}
 		
@@ -5,12 +5,12 @@ import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.ValidationStringency;
+import io.compgen.cgsplice.support.AbstractMetricsCommand;
 import io.compgen.cmdline.annotation.Command;
 import io.compgen.cmdline.annotation.Exec;
 import io.compgen.cmdline.annotation.Option;
 import io.compgen.cmdline.annotation.UnnamedArg;
 import io.compgen.cmdline.exceptions.CommandArgumentException;
-import io.compgen.cmdline.impl.AbstractOutputCommand;
 import io.compgen.common.TallyCounts;
 import io.compgen.common.progress.FileChannelStats;
 import io.compgen.common.progress.ProgressMessage;
@@ -31,11 +31,12 @@ import java.util.Map;
 import java.util.Set;
 
 @Command(name="bam-stats", desc="Stats about a BAM file and junction coverage", category="splicing")
-public class BamStats extends AbstractOutputCommand {
+public class BamStats extends AbstractMetricsCommand {
     private String filename = null;
     private boolean lenient = false;
     private boolean silent = false;
     private Orientation orient = Orientation.UNSTRANDED;
+    private int saturationSteps = -1;
 
     @UnnamedArg(name = "FILE")
     public void setFilename(String filename) {
@@ -72,6 +73,14 @@ public class BamStats extends AbstractOutputCommand {
         }
     }
 
+    @Option(desc="Calculate a junction saturation curve by subsampling fragments in {val} steps (ex: 10 => 10%, 20%, ... 100%)", name="saturation")
+    public void setSaturation(int steps) throws CommandArgumentException {
+        if (steps < 1 || steps > 100) {
+            throw new CommandArgumentException("--saturation must be between 1 and 100!");
+        }
+        this.saturationSteps = steps;
+    }
+
     @Exec
     public void exec() throws IOException, CommandArgumentException {
         if (filename == null) {
@@ -97,9 +106,12 @@ public class BamStats extends AbstractOutputCommand {
             channel = fis.getChannel();
             reader = readerFactory.open(SamInputResource.of(fis));
             name = f.getName();
+            metrics.addBytes("ingest", f.length());
         }
 
-        final Set<String> junctions = new HashSet<String>();
+        // junction -> the lowest saturation step that includes a fragment spanning it
+        final Map<String, Integer> junctions = new HashMap<String, Integer>();
+        final long[] stepFragments = new long[Math.max(saturationSteps, 1)];
         final Map<String, Set<String>> readJuncBuf = new HashMap<String, Set<String>>();
         final Map<String, Integer> readEndPos = new HashMap<String, Integer>();
         final TallyCounts juncCounts = new TallyCounts();
@@ -121,8 +133,11 @@ public class BamStats extends AbstractOutputCommand {
                 }, new CloseableFinalizer<SAMRecord>(){});
 
 
+        metrics.start("ingest");
+        long reads = 0;
         while (it.hasNext()) {
             SAMRecord read = it.next();
+            reads++;
 
             // summary counts only based on first reads
             if (!read.getReadPairedFlag() || read.getFirstOfPairFlag()) {
@@ -151,9 +166,13 @@ public class BamStats extends AbstractOutputCommand {
         		}
         	}
             
+            int step = saturationStep(read.getReadName());
             for (GenomeSpan span: ReadUtils.getJunctionsForRead(read, orient)) {
             	String junc = span.toString();
-            	junctions.add(junc);
+            	Integer lowest = junctions.get(junc);
+            	if (lowest == null || step < lowest) {
+            	    junctions.put(junc, step);
+            	}
         		readJuncBuf.get(read.getReadName()).add(junc);
             }
 
@@ -165,6 +184,7 @@ public class BamStats extends AbstractOutputCommand {
             	}
             	
             	juncCounts.incr(juncCount);
+            	stepFragments[step]++;
             	
             	// Do the first/second pairs overlap?
         		if (read.getReadPairedFlag()) { 
@@ -183,7 +203,10 @@ public class BamStats extends AbstractOutputCommand {
         }
         
         reader.close();
+        metrics.stop("ingest");
+        metrics.addRecords("ingest", reads);
 
+        metrics.start("output");
         println("Total-reads:\t" + total);
         println("Mapped-reads:\t" + mapped);
         println("Unmapped/unpaired-reads:\t" + unmapped);
@@ -199,6 +222,46 @@ public class BamStats extends AbstractOutputCommand {
         for (int i=0; i<=juncCounts.getMax(); i++) {
         	println(i+"\t"+juncCounts.getCount(i));
         }
+
+        if (saturationSteps > 0) {
+            long[] stepJunctions = new long[saturationSteps];
+            for (Integer step: junctions.values()) {
+                stepJunctions[step]++;
+            }
+
+            println("");
+            println("[Junction saturation]");
+            println("pct\tfragments\tunique-junctions");
+            long fragAcc = 0;
+            long juncAcc = 0;
+            for (int i=0; i<saturationSteps; i++) {
+                fragAcc += stepFragments[i];
+                juncAcc += stepJunctions[i];
+                println(String.format("%.1f", (i+1) * 100.0 / saturationSteps)+"\t"+fragAcc+"\t"+juncAcc);
+            }
+        }
+        metrics.stop("output");
+        writeMetricsJson();
+    }
+
+    /**
+     * Assigns a fragment to a subsampling step based on a hash of the read name. Both reads
+     * in a pair have the same name, so they always land in the same step, and the assignment
+     * is the same from run to run. A fragment in step N is included in every subsample that
+     * is at least (N+1)/steps of the file.
+     */
+    private int saturationStep(String readName) {
+        if (saturationSteps < 1) {
+            return 0;
+        }
+        // murmur3 finalizer to spread out similar read names
+        int h = readName.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return (int) (((h & 0xffffffffL) * saturationSteps) >>> 32);
     }
     
     private void println(String s) throws IOException {
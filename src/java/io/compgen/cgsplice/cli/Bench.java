@@ -0,0 +1,447 @@
+package io.compgen.cgsplice.cli;
+
+import io.compgen.cgsplice.CGSplice;
+import io.compgen.cgsplice.support.AsyncTabWriter;
+import io.compgen.cgsplice.support.BenchChild;
+import io.compgen.cmdline.annotation.Command;
+import io.compgen.cmdline.annotation.Exec;
+import io.compgen.cmdline.annotation.Option;
+import io.compgen.cmdline.exceptions.CommandArgumentException;
+import io.compgen.cmdline.impl.AbstractOutputCommand;
+import io.compgen.common.StringLineReader;
+import io.compgen.common.StringUtils;
+import io.compgen.ngsutils.NGSUtils;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+@Command(name="bench", desc="End-to-end benchmarks for junction-count, splice-diff, and combine-events on synthetic data", category="benchmark", doc="For each size, synthetic inputs "
+        + "are generated with synth-data, and each command is run in a separate JVM (for each thread count, if the command supports threads). Wall time, peak RSS (VmHWM), peak heap, "
+        + "GC time, and records/sec are reported. Outputs from multi-threaded runs are compared to the single-threaded output, and if --ref-cp is given, every output is also "
+        + "compared to the output from a reference build (## program, ## cmd, and ## metrics lines are ignored).\n\n"
+        + "Records are: junction-count - junctions written, splice-diff - rows written, combine-events - rows read.")
+public class Bench extends AbstractOutputCommand {
+    private List<Integer> sizes = Arrays.asList(10000, 100000);
+    private List<Integer> threads = Arrays.asList(1);
+    private int samples = 6;
+    private long seed = 42;
+    private int repeat = 1;
+    private String workDir = null;
+    private String refClasspath = null;
+    private String heap = null;
+    private String jsonFilename = null;
+    private Set<File> refOutputs = new HashSet<File>();
+
+    private class Result {
+        String command;
+        int size;
+        int threads;
+        String implementation;
+        double wallSec = -1;
+        long peakRssKb = -1;
+        long peakHeap = -1;
+        long gcMillis = -1;
+        long records = -1;
+        int exitCode = 0;
+        String match = "NA";
+        String output;
+    }
+
+    @Option(desc="Comma-delimited list of junction counts to test", name="sizes", defaultValue="10000,100000")
+    public void setSizes(String val) {
+        sizes = parseIntList(val);
+    }
+
+    @Option(desc="Comma-delimited list of thread counts to test (for commands with --threads)", name="threads", defaultValue="1")
+    public void setThreads(String val) {
+        threads = parseIntList(val);
+    }
+
+    @Option(desc="Number of samples", name="samples", defaultValue="6")
+    public void setSamples(int samples) {
+        this.samples = samples;
+    }
+
+    @Option(desc="Random seed for synth-data", name="seed", defaultValue="42")
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    @Option(desc="Number of times to run each command (the fastest run is reported)", name="repeat", defaultValue="1")
+    public void setRepeat(int repeat) {
+        this.repeat = repeat;
+    }
+
+    @Option(desc="Working directory for inputs and outputs (default: a new temporary directory that is removed afterwards)", name="workdir")
+    public void setWorkDir(String workDir) {
+        this.workDir = workDir;
+    }
+
+    @Option(desc="Classpath (jar) for a reference build to compare outputs against", name="ref-cp")
+    public void setRefClasspath(String refClasspath) {
+        this.refClasspath = refClasspath;
+    }
+
+    @Option(desc="Max heap for child JVMs (ex: 4g)", name="heap")
+    public void setHeap(String heap) {
+        this.heap = heap;
+    }
+
+    @Option(desc="Also write the report as JSON", name="json")
+    public void setJsonFilename(String jsonFilename) {
+        this.jsonFilename = jsonFilename;
+    }
+
+    private static List<Integer> parseIntList(String val) {
+        List<Integer> out = new ArrayList<Integer>();
+        for (String s: val.split(",")) {
+            out.add(Integer.parseInt(s.trim()));
+        }
+        return out;
+    }
+
+    @Exec
+    public void exec() throws IOException, CommandArgumentException, InterruptedException {
+        if (repeat < 1) {
+            throw new CommandArgumentException("--repeat must be at least 1!");
+        }
+        for (int t: threads) {
+            if (t < 1) {
+                throw new CommandArgumentException("--threads must be at least 1!");
+            }
+        }
+
+        File work;
+        if (workDir == null) {
+            work = File.createTempFile("cgsplice-bench", "");
+            work.delete();
+        } else {
+            work = new File(workDir);
+        }
+        if (!work.exists() && !work.mkdirs()) {
+            throw new IOException("Unable to create working directory: " + work);
+        }
+        if (verbose) {
+            System.err.println("Working directory: " + work);
+        }
+
+        try {
+            runAll(work);
+        } finally {
+            if (workDir == null) {
+                deleteRecursive(work);
+            }
+        }
+    }
+
+    private void runAll(File work) throws IOException, InterruptedException {
+        List<Result> results = new ArrayList<Result>();
+        for (int size: sizes) {
+            File dir = new File(work, "size-" + size);
+            dir.mkdirs();
+            String prefix = new File(dir, "syn_").getPath();
+
+            List<String> synth = new ArrayList<String>();
+            synth.add("synth-data");
+            synth.add("--samples");
+            synth.add("" + samples);
+            synth.add("--junctions");
+            synth.add("" + size);
+            synth.add("--seed");
+            synth.add("" + seed);
+            synth.add("--bam");
+            synth.add("--bam-genes");
+            synth.add("" + Math.max(10, Math.min(2000, size / 50)));
+            synth.add(prefix);
+            Result gen = run("synth-data", size, 1, null, synth, new File(dir, "synth-data.log"), 1);
+            if (gen.exitCode != 0) {
+                throw new IOException("synth-data failed (see: " + gen.output + ")");
+            }
+
+            List<String> countFiles = new ArrayList<String>();
+            for (int i=1; i<=samples; i++) {
+                countFiles.add(prefix + "s" + i + ".txt");
+            }
+            List<String> groups = new ArrayList<String>();
+            for (int i=0; i<samples; i++) {
+                groups.add(i < samples / 2 ? "1" : "2");
+            }
+
+            List<String> jc = new ArrayList<String>();
+            jc.add("junction-count");
+            jc.add("--edit-distance");
+            jc.add(prefix + "s1.bam");
+            runCommand(results, "junction-count", size, 1, jc, jc, dir);
+
+            List<String> sd = new ArrayList<String>();
+            sd.add("splice-diff");
+            sd.add("--groups");
+            sd.add(StringUtils.join(",", groups));
+            sd.addAll(countFiles);
+            runCommand(results, "splice-diff", size, 1, sd, sd, dir);
+            String diffFile = new File(dir, "splice-diff.out.txt").getPath();
+
+            // the reference build is always run single-threaded
+            List<String> ceRef = new ArrayList<String>();
+            ceRef.add("combine-events");
+            ceRef.add(diffFile);
+
+            for (int t: threads) {
+                List<String> ce = new ArrayList<String>();
+                ce.add("combine-events");
+                if (t > 1) {
+                    ce.add("--threads");
+                    ce.add("" + t);
+                }
+                ce.add(diffFile);
+                runCommand(results, "combine-events", size, t, ce, ceRef, dir);
+            }
+        }
+
+        writeReport(results);
+    }
+
+    private static void deleteRecursive(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) {
+                deleteRecursive(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Runs a command (and the reference build, if given) and compares the outputs to the
+     * single-threaded and reference outputs. The reference build is run with refArgs once per 
+     * command and size (the first time it is needed in this run).
+     */
+    private void runCommand(List<Result> results, String command, int size, int threadCount, List<String> args, List<String> refArgs, File dir) throws IOException, InterruptedException {
+        String suffix = (threadCount > 1) ? ".t" + threadCount : "";
+        Result result = run(command, size, threadCount, null, args, new File(dir, command + suffix + ".out.txt"), repeat);
+        results.add(result);
+
+        if (threadCount > 1) {
+            result.match = compareOutputs(new File(dir, command + ".out.txt"), new File(result.output)) ? "same" : "diff";
+        }
+
+        if (refClasspath != null) {
+            File refOut = new File(dir, command + ".ref.txt");
+            // the inputs are regenerated each run, so old reference outputs can't be reused
+            if (refOutputs.add(refOut)) {
+                Result ref = run(command, size, 1, refClasspath, refArgs, refOut, repeat);
+                results.add(ref);
+            }
+            boolean same = compareOutputs(refOut, new File(result.output));
+            if (threadCount == 1 || result.match.equals("same")) {
+                result.match = same ? "same" : "diff";
+            }
+        }
+        if (verbose) {
+            System.err.println(command + " size=" + size + " threads=" + threadCount + " wall=" + result.wallSec + "s match=" + result.match);
+        }
+    }
+
+    private Result run(String command, int size, int threadCount, String classpath, List<String> args, File output, int repeats) throws IOException, InterruptedException {
+        Result best = null;
+        for (int i=0; i<repeats; i++) {
+            Result result = runOnce(command, size, threadCount, classpath, args, output);
+            if (best == null || (result.exitCode == 0 && result.wallSec < best.wallSec)) {
+                best = result;
+            }
+        }
+        return best;
+    }
+
+    private Result runOnce(String command, int size, int threadCount, String classpath, List<String> args, File output) throws IOException, InterruptedException {
+        File stats = new File(output.getPath() + ".stats");
+        File log = new File(output.getPath() + ".log");
+
+        String cp = System.getProperty("java.class.path");
+        if (classpath != null) {
+            // the reference classes come first; BenchChild is found in this build
+            cp = classpath + File.pathSeparator + cp;
+        }
+
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        if (heap != null) {
+            cmd.add("-Xmx" + heap);
+        }
+        cmd.add("-cp");
+        cmd.add(cp);
+        cmd.add(BenchChild.class.getName());
+        cmd.add(stats.getPath());
+        cmd.add(CGSplice.class.getName());
+        cmd.addAll(args);
+
+        ProcessBuilder pb = new ProcessBuilder(cmd);
+        pb.redirectOutput(output);
+        pb.redirectError(log);
+
+        stats.delete();
+        long start = System.nanoTime();
+        Process proc = pb.start();
+        int exitCode = proc.waitFor();
+        long end = System.nanoTime();
+
+        Result result = new Result();
+        result.command = command;
+        result.size = size;
+        result.threads = threadCount;
+        result.implementation = (classpath == null) ? "current" : "reference";
+        result.wallSec = (end - start) / 1000000000.0;
+        result.exitCode = exitCode;
+        result.output = output.getPath();
+
+        if (stats.exists()) {
+            Map<String, Long> vals = new HashMap<String, Long>();
+            StringLineReader reader = new StringLineReader(stats.getPath());
+            for (String line: reader) {
+                String[] cols = line.split("\t");
+                if (cols.length == 2) {
+                    vals.put(cols[0], Long.parseLong(cols[1]));
+                }
+            }
+            reader.close();
+            if (vals.containsKey("peak_rss_kb")) {
+                result.peakRssKb = vals.get("peak_rss_kb");
+            }
+            if (vals.containsKey("peak_heap")) {
+                result.peakHeap = vals.get("peak_heap");
+            }
+            if (vals.containsKey("gc_ms")) {
+                result.gcMillis = vals.get("gc_ms");
+            }
+        }
+
+        if (exitCode == 0) {
+            if (command.equals("combine-events")) {
+                result.records = countRecords(new File(args.get(args.size() - 1))) - 1;
+            } else if (command.equals("synth-data")) {
+                result.records = size;
+            } else {
+                result.records = countRecords(output) - 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return number of non-comment lines (including the header)
+     */
+    private static long countRecords(File file) throws IOException {
+        long count = 0;
+        StringLineReader reader = new StringLineReader(file.getPath());
+        for (String line: reader) {
+            if (line.length() > 0 && line.charAt(0) != '#') {
+                count++;
+            }
+        }
+        reader.close();
+        return count;
+    }
+
+    /**
+     * Compares two outputs line by line (## program, ## cmd, and ## metrics lines are skipped)
+     */
+    private static boolean compareOutputs(File one, File two) throws IOException {
+        if (!one.exists() || !two.exists()) {
+            return false;
+        }
+        StringLineReader r1 = new StringLineReader(one.getPath());
+        StringLineReader r2 = new StringLineReader(two.getPath());
+        Iterator<String> it1 = r1.iterator();
+        Iterator<String> it2 = r2.iterator();
+        boolean same = true;
+        while (same) {
+            String l1 = nextCompared(it1);
+            String l2 = nextCompared(it2);
+            if (l1 == null || l2 == null) {
+                same = (l1 == null && l2 == null);
+                break;
+            }
+            same = l1.equals(l2);
+        }
+        r1.close();
+        r2.close();
+        return same;
+    }
+
+    private static String nextCompared(Iterator<String> it) {
+        while (it.hasNext()) {
+            String line = it.next();
+            if (!line.startsWith("## program:") && !line.startsWith("## cmd:") && !line.startsWith("## metrics-")) {
+                return line;
+            }
+        }
+        return null;
+    }
+
+    private void writeReport(List<Result> results) throws IOException {
+        AsyncTabWriter writer = new AsyncTabWriter(out);
+        writer.write_line("## program: " + NGSUtils.getVersion());
+        writer.write_line("## cmd: " + NGSUtils.getArgs());
+        writer.write_line("## samples: " + samples);
+        writer.write_line("## seed: " + seed);
+        if (refClasspath != null) {
+            writer.write_line("## reference: " + refClasspath);
+        }
+        writer.write("command", "implementation", "size", "threads", "wall_sec", "peak_rss_kb", "peak_heap", "gc_ms", "records", "records_per_sec", "exit_code", "match", "output");
+        writer.eol();
+
+        for (Result r: results) {
+            writer.write(r.command, r.implementation);
+            writer.write(r.size);
+            writer.write(r.threads);
+            writer.write(r.wallSec);
+            writer.write(r.peakRssKb);
+            writer.write(r.peakHeap);
+            writer.write(r.gcMillis);
+            writer.write(r.records);
+            writer.write(recordsPerSec(r));
+            writer.write(r.exitCode);
+            writer.write(r.match, r.output);
+            writer.eol();
+        }
+        writer.close();
+
+        if (jsonFilename != null) {
+            FileWriter json = new FileWriter(jsonFilename);
+            json.write("{\n  \"samples\": " + samples + ",\n  \"seed\": " + seed + ",\n");
+            if (refClasspath != null) {
+                json.write("  \"reference\": " + jsonString(refClasspath) + ",\n");
+            }
+            json.write("  \"results\": [\n");
+            for (int i=0; i<results.size(); i++) {
+                Result r = results.get(i);
+                json.write("    {\"command\": " + jsonString(r.command) + ", \"implementation\": " + jsonString(r.implementation) + ", \"size\": " + r.size + ", \"threads\": " + r.threads
+                        + ", \"wall_sec\": " + r.wallSec + ", \"peak_rss_kb\": " + r.peakRssKb + ", \"peak_heap\": " + r.peakHeap + ", \"gc_ms\": " + r.gcMillis
+                        + ", \"records\": " + r.records + ", \"records_per_sec\": " + recordsPerSec(r) + ", \"exit_code\": " + r.exitCode
+                        + ", \"match\": " + jsonString(r.match) + ", \"output\": " + jsonString(r.output) + "}" + (i < results.size() - 1 ? "," : "") + "\n");
+            }
+            json.write("  ]\n}\n");
+            json.close();
+        }
+    }
+
+    private static double recordsPerSec(Result r) {
+        if (r.records < 0 || r.wallSec <= 0) {
+            return -1;
+        }
+        return r.records / r.wallSec;
+    }
+
+    private static String jsonString(String val) {
+        return "\"" + val.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
@@ -1,30 +1,38 @@
 package io.compgen.cgsplice.cli;
 
-import io.compgen.cgsplice.junction.JunctionDonorAcceptor;
+import io.compgen.cgsplice.junction.JunctionEventGrouper;
 import io.compgen.cgsplice.junction.JunctionKey;
+import io.compgen.cgsplice.support.AbstractMetricsCommand;
+import io.compgen.cgsplice.support.AsyncTabWriter;
 import io.compgen.cmdline.annotation.Command;
 import io.compgen.cmdline.annotation.Exec;
 import io.compgen.cmdline.annotation.Option;
 import io.compgen.cmdline.annotation.UnnamedArg;
-import io.compgen.cmdline.impl.AbstractOutputCommand;
+import io.compgen.cmdline.exceptions.CommandArgumentException;
 import io.compgen.common.StringLineReader;
 import io.compgen.common.StringUtils;
-import io.compgen.common.TabWriter;
 import io.compgen.ngsutils.NGSUtils;
 import io.compgen.ngsutils.annotation.GenomeSpan;
 import io.compgen.ngsutils.bam.Strand;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 @Command(name="combine-events", desc="Merges differentially spliced junction counts (splice-diff) into events of related junctions", category="splicing", experimental=true)
-public class CombineEvents extends AbstractOutputCommand {
+public class CombineEvents extends AbstractMetricsCommand {
     public class JunctionEventStats {
         public final double juncFDR;
         public final double pctdiff;
@@ -35,6 +43,40 @@ public class CombineEvents extends AbstractOutputCommand {
         }
     }
 
+    /**
+     * All of the junctions read for a part of the genome (a locus, or a whole contig)
+     */
+    private class Locus {
+        private final Set<JunctionKey> allJunctions = new LinkedHashSet<JunctionKey>();
+        private final Map<JunctionKey, JunctionEventStats> validJunctions = new HashMap<JunctionKey, JunctionEventStats>();
+        private final JunctionEventGrouper grouper = new JunctionEventGrouper();
+        private String ref = null;
+        private int maxEnd = -1;
+        
+        public Locus() {
+            grouper.setGroupOverlapping(groupOverlapping);
+        }
+        
+        public void add(JunctionKey junction, GenomeSpan region, boolean isDonor, double fdr, double pct) {
+            allJunctions.add(junction);
+            if (ref == null) {
+                ref = region.ref;
+            }
+            maxEnd = Math.max(maxEnd, region.end);
+            
+            if (fdr > juncFDRThreshold || Math.abs(pct) < pctThreshold) {
+                return;
+            }
+            
+            validJunctions.put(junction, new JunctionEventStats(fdr, pct));
+            grouper.add(junction, isDonor);
+        }
+        
+        public boolean isEmpty() {
+            return allJunctions.isEmpty();
+        }
+    }
+
     private String filename = null;
     private String failedFilename = null;
     private String bedFilename = null;
@@ -42,15 +84,21 @@ public class CombineEvents extends AbstractOutputCommand {
     private double pctThreshold = 0.1;
     private double eventFDRThreshold = 0.1;
     private double juncFDRThreshold = 0.2;
-
-    private Set<String> used = new HashSet<String>();
     
-    private Map<JunctionKey, JunctionEventStats> validJunctions = new HashMap<JunctionKey, JunctionEventStats>();
-    private List<List<JunctionKey>> events = new ArrayList<List<JunctionKey>>();
-    
-    private Map<JunctionDonorAcceptor, List<JunctionKey>> donors = new HashMap<JunctionDonorAcceptor, List<JunctionKey>>();
-    private Map<JunctionDonorAcceptor, List<JunctionKey>> acceptors = new HashMap<JunctionDonorAcceptor, List<JunctionKey>>();
+    private boolean stream = false;
+    private int threads = 1;
+    private boolean groupOverlapping = false;
 
+    private AsyncTabWriter writer = null;
+    private AsyncTabWriter bed = null;
+    private AsyncTabWriter failed = null;
+    
+    private long totalJunctions = 0;
+    private long passingJunctions = 0;
+    private long passingDonors = 0;
+    private long passingAcceptors = 0;
+    private long multiEvents = 0;
+    private long soloEvents = 0;
     
     @UnnamedArg(name = "FILE")
     public void setFilename(String filename) {
@@ -82,139 +130,244 @@ public class CombineEvents extends AbstractOutputCommand {
         this.pctThreshold = val;
     }
 
+    @Option(desc="Stream the input (must be sorted, as written by splice-diff) and write each locus as soon as it is complete. Summary counts are written at the end of the output.", name="stream")
+    public void setStream(boolean val) {
+        this.stream = val;
+    }
+
+    @Option(desc="Also group junctions with overlapping introns (same strand) into one event", name="overlap")
+    public void setGroupOverlapping(boolean val) {
+        this.groupOverlapping = val;
+    }
+
+    @Option(desc="Number of threads to use (contigs are grouped in parallel)", name="threads", defaultValue="1")
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
 
     @Exec
-    public void exec() throws IOException {
-        
-        String[] header = null;
-        int juncIdx = -1;
-        int siteTypeIdx = -1;
-//        int siteIdx = -1;
-        int pctIdx = -1;
-        int fdrIdx = -1;
-//        int pvalueIdx = -1;
-        int strandIdx = -1;
-        
-        Set<JunctionKey> allJunctions = new HashSet<JunctionKey>();
-        
-        StringLineReader reader = new StringLineReader(filename);
-        for (String line: reader) {
-            if (line != null && line.charAt(0) != '#') {
-                String[] cols = StringUtils.strip(line).split("\t");
-                if (header == null) {
-                    // process header, look for column names, and assign column-indexes
-                    header = cols;
-                    
-                    for (int i=0; i< header.length; i++) {
-                        switch(header[i]) {
-                        case "junction":
-                            juncIdx = i;
-                            break;
-                        case "strand":
-                            strandIdx = i;
-                            break;
-                        case "site_type":
-                            siteTypeIdx = i;
-                            break;
-//                        case "site":
-//                            siteIdx = i;
-//                            break;
-                        case "pct_diff":
-                            pctIdx = i;
-                            break;
-//                        case "pvalue":
-//                            pvalueIdx = i;
-//                            break;
-                        case "FDR (B-H)":
-                            fdrIdx = i;
-                            break;
-                        default:
-                            break;
-                        }
-                    }
-                } else {
-                    // this is a junction line... find the key, if it is new, add a count object, 
-                    // and add the counts for this sample.
-
-                    double fdr = Double.parseDouble(cols[fdrIdx]);
-                    double pct = Double.parseDouble(cols[pctIdx]);
-//                    double pvalue = Double.parseDouble(cols[pvalueIdx]);
-
-                    JunctionKey junction = new JunctionKey(cols[juncIdx],Strand.parse(cols[strandIdx]));
-                    allJunctions.add(junction);
-                    
-                    if (fdr > juncFDRThreshold || Math.abs(pct) < pctThreshold) {
-                        continue;
-                    }
-                    
-                    validJunctions.put(junction, new JunctionEventStats(fdr, pct));
-                    
-                    boolean isDonor = cols[siteTypeIdx].equals("donor");
-                    if (isDonor) {
-                        if (!donors.containsKey(junction.donor)) {
-                            donors.put(junction.donor, new ArrayList<JunctionKey>());
-                        }
-                        donors.get(junction.donor).add(junction);
-                    } else {
-                        if (!acceptors.containsKey(junction.acceptor)) {
-                            acceptors.put(junction.acceptor, new ArrayList<JunctionKey>());
-                        }
-                        acceptors.get(junction.acceptor).add(junction);
-                    }
-                }
+    public void exec() throws IOException, CommandArgumentException {
+        if (threads < 1) {
+            throw new CommandArgumentException("--threads must be at least 1!");
+        }
+        if (stream && threads > 1) {
+            throw new CommandArgumentException("--threads can't be used with --stream!");
+        }
+
+        if (failedFilename != null) {
+            failed = new AsyncTabWriter(failedFilename);
+        }
+        if (bedFilename != null) {
+            bed = new AsyncTabWriter(bedFilename);
+        }
+        writer = new AsyncTabWriter(out);
+
+        if (stream) {
+            writeHeader();
+            writer.write("event", "genome_span", "strand", "junction_count", "min_pvalue", "max_pctdiff", "retained_intron", "pvalues", "pctdiffs");
+            writer.eol();
+
+            metrics.start("stream");
+            readStream();
+            metrics.stop("stream");
+            metrics.addBytes("stream", new File(filename).length());
+
+            writeSummary();
+        } else {
+            // events never cross references, so each contig is grouped on its own 
+            // and the contigs are written in sorted order.
+            metrics.start("ingest");
+            Map<String, Locus> contigs = readAll();
+            metrics.stop("ingest");
+            metrics.addBytes("ingest", new File(filename).length());
+
+            metrics.start("grouping");
+            List<String> refs = StringUtils.naturalSort(contigs.keySet());
+            List<List<List<JunctionKey>>> events = groupContigs(contigs, refs);
+            metrics.stop("grouping");
+
+            metrics.start("output");
+            for (int i=0; i<refs.size(); i++) {
+                Locus locus = contigs.get(refs.get(i));
+                writeFailed(locus);
+                countLocus(locus, events.get(i));
             }
-        }               
-        reader.close();
-        
-        if (failedFilename !=null) {
-            TabWriter failed = new TabWriter(failedFilename);
-            for (JunctionKey junc: allJunctions) {
-                if (!validJunctions.containsKey(junc)) {
-                    GenomeSpan region = GenomeSpan.parse(junc.name, true);
-                    failed.write(region.ref, ""+region.start, ""+region.end, junc.name, "0", junc.strand.toString());
-                    failed.eol();
-                }
+
+            writeHeader();
+            writeSummary();
+            writer.write("event", "genome_span", "strand", "junction_count", "min_pvalue", "max_pctdiff", "retained_intron", "pvalues", "pctdiffs");
+            writer.eol();
+            
+            for (int i=0; i<refs.size(); i++) {
+                writeEvents(contigs.get(refs.get(i)), events.get(i));
             }
+            metrics.stop("output");
+            metrics.addRecords("grouping", totalJunctions);
+            metrics.addRecords("output", multiEvents + soloEvents);
+            metrics.addBytes("output", writer.getBytesWritten());
+        }
+
+        metrics.write(writer);
+        writer.close();
+        if (bed!=null) {
+            bed.close();
+        }
+        if (failed!=null) {
             failed.close();
         }
-                
-        for (JunctionKey junction: validJunctions.keySet()) {
-            startEvent(junction);
+        writeMetricsJson();
+    }
+
+    private Map<String, Locus> readAll() throws IOException {
+        Map<String, Locus> contigs = new HashMap<String, Locus>();
+        DiffReader reader = new DiffReader(filename);
+        long rows = 0;
+        while (reader.next()) {
+            rows++;
+            if (!contigs.containsKey(reader.region.ref)) {
+                contigs.put(reader.region.ref, new Locus());
+            }
+            contigs.get(reader.region.ref).add(reader.junction, reader.region, reader.isDonor, reader.fdr, reader.pct);
         }
+        reader.close();
+        metrics.addRecords("ingest", rows);
+        return contigs;
+    }
+
+    /**
+     * Group the events for each contig (in parallel if --threads > 1)
+     * @return the events for each ref, in the same order as refs
+     */
+    private List<List<List<JunctionKey>>> groupContigs(Map<String, Locus> contigs, List<String> refs) throws IOException {
+        List<List<List<JunctionKey>>> events = new ArrayList<List<List<JunctionKey>>>();
+        if (threads == 1) {
+            for (String ref: refs) {
+                events.add(contigs.get(ref).grouper.getEvents());
+            }
+            return events;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<List<List<JunctionKey>>>> futures = new ArrayList<Future<List<List<JunctionKey>>>>();
+            for (String ref: refs) {
+                final JunctionEventGrouper grouper = contigs.get(ref).grouper;
+                futures.add(pool.submit(new Callable<List<List<JunctionKey>>>() {
+                    @Override
+                    public List<List<JunctionKey>> call() {
+                        return grouper.getEvents();
+                    }}));
+            }
+            for (Future<List<List<JunctionKey>>> future: futures) {
+                events.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return events;
+    }
+
+    /**
+     * Junctions can only be grouped if they share a donor or acceptor position. If the input is
+     * sorted, once we reach a junction that starts after the end of every junction in the current
+     * locus, nothing else can join the locus and it can be written out.
+     */
+    private void readStream() throws IOException {
+        Set<String> finishedRefs = new HashSet<String>();
+        Locus locus = new Locus();
+        int lastStart = -1;
+
+        long rows = 0;
+        DiffReader reader = new DiffReader(filename);
+        while (reader.next()) {
+            GenomeSpan region = reader.region;
+            if (!locus.isEmpty()) {
+                if (!region.ref.equals(locus.ref)) {
+                    finishedRefs.add(locus.ref);
+                    writeLocus(locus);
+                    locus = new Locus();
+                    lastStart = -1;
+                } else if (region.start > locus.maxEnd) {
+                    writeLocus(locus);
+                    locus = new Locus();
+                }
+            }
+
+            if (finishedRefs.contains(region.ref) || region.start < lastStart) {
+                reader.close();
+                throw new IOException("Input file is not sorted (at: "+reader.junction.name+"). Run without --stream.");
+            }
+            lastStart = region.start;
+
+            locus.add(reader.junction, region, reader.isDonor, reader.fdr, reader.pct);
+            rows++;
+        }
+        reader.close();
+        metrics.addRecords("stream", rows);
         
-        int multievents = 0;
-        int soloevents = 0;
+        if (!locus.isEmpty()) {
+            writeLocus(locus);
+        }
+    }
+
+    private void writeLocus(Locus locus) throws IOException {
+        writeFailed(locus);
+        List<List<JunctionKey>> events = locus.grouper.getEvents();
+        countLocus(locus, events);
+        writeEvents(locus, events);
+    }
+
+    private void countLocus(Locus locus, List<List<JunctionKey>> events) {
+        totalJunctions += locus.allJunctions.size();
+        passingJunctions += locus.validJunctions.size();
+        passingDonors += locus.grouper.getDonorCount();
+        passingAcceptors += locus.grouper.getAcceptorCount();
 
         for (List<JunctionKey> event: events) {
             if (event.size()==1) {
-                soloevents++;
+                soloEvents++;
             } else {
-                multievents++;
+                multiEvents++;
             }
         }
-        
-        TabWriter bed = null;
-        
-        if (bedFilename != null) {
-            bed = new TabWriter(bedFilename);
-        }
+    }
 
-        TabWriter writer = new TabWriter(out);
+    private void writeHeader() throws IOException {
         writer.write_line("## program: " + NGSUtils.getVersion());
         writer.write_line("## cmd: " + NGSUtils.getArgs());
         writer.write_line("## input: " + filename);
         writer.write_line("## event-fdr-threshold: " + eventFDRThreshold);
         writer.write_line("## junc-fdr-threshold: " + juncFDRThreshold);
         writer.write_line("## pct-threshold: " + pctThreshold);
-        writer.write_line("## total-junctions: "+ allJunctions.size());
-        writer.write_line("## passing-junctions: "+ validJunctions.size());
-        writer.write_line("## passing-donors: "+ donors.size());
-        writer.write_line("## passing-acceptors: "+ acceptors.size());
-        writer.write_line("## multi-events: "+ multievents);
-        writer.write_line("## solo-events: "+ soloevents);
-        writer.write("event", "genome_span", "strand", "junction_count", "min_pvalue", "max_pctdiff", "retained_intron", "pvalues", "pctdiffs");
-        writer.eol();
+    }
+
+    private void writeSummary() throws IOException {
+        writer.write_line("## total-junctions: "+ totalJunctions);
+        writer.write_line("## passing-junctions: "+ passingJunctions);
+        writer.write_line("## passing-donors: "+ passingDonors);
+        writer.write_line("## passing-acceptors: "+ passingAcceptors);
+        writer.write_line("## multi-events: "+ multiEvents);
+        writer.write_line("## solo-events: "+ soloEvents);
+    }
+
+    private void writeFailed(Locus locus) throws IOException {
+        if (failed == null) {
+            return;
+        }
+        for (JunctionKey junc: locus.allJunctions) {
+            if (!locus.validJunctions.containsKey(junc)) {
+                GenomeSpan region = GenomeSpan.parse(junc.name, true);
+                failed.write(region.ref, ""+region.start, ""+region.end, junc.name, "0", junc.strand.toString());
+                failed.eol();
+            }
+        }
+    }
 
+    private void writeEvents(Locus locus, List<List<JunctionKey>> events) throws IOException {
         for (List<JunctionKey> event: events) {
             double minPvalue = -1;
             double maxPctDiff = -1;
@@ -243,7 +396,7 @@ public class CombineEvents extends AbstractOutputCommand {
                     retainedIntron = true;
                 }
                 
-                JunctionEventStats stats = validJunctions.get(junc);
+                JunctionEventStats stats = locus.validJunctions.get(junc);
                 
                 fdrs.add(stats.juncFDR);
                 pctdiffs.add(stats.pctdiff);
@@ -275,40 +428,79 @@ public class CombineEvents extends AbstractOutputCommand {
 	            writer.eol();
             }
         }
-
-        writer.close();
-        if (bed!=null) {
-            bed.close();
-        }
     }
-    
-    private void startEvent(JunctionKey junction) {
-        if (used.contains(junction.name)) {
-            return;
-        }
-        List<JunctionKey> event = new ArrayList<JunctionKey>();
-        populateEvent(junction, event);
-        Collections.sort(event);
-        events.add(event);
-    }
-    
-    private void populateEvent(JunctionKey junction, List<JunctionKey> event) {
-        if (used.contains(junction.name)) {
-            return;
+
+    /**
+     * Reads the junction rows from a splice-diff file, one row at a time.
+     */
+    private static class DiffReader {
+        private final StringLineReader reader;
+        private final Iterator<String> it;
+
+        private int juncIdx = -1;
+        private int siteTypeIdx = -1;
+        private int pctIdx = -1;
+        private int fdrIdx = -1;
+        private int strandIdx = -1;
+        private boolean headerFound = false;
+        
+        public JunctionKey junction = null;
+        public GenomeSpan region = null;
+        public boolean isDonor = false;
+        public double fdr = -1;
+        public double pct = -1;
+        
+        public DiffReader(String filename) throws IOException {
+            reader = new StringLineReader(filename);
+            it = reader.iterator();
         }
-        used.add(junction.name);
-        event.add(junction);
-        if (donors.containsKey(junction.donor)) {
-            for (JunctionKey sib: donors.get(junction.donor)) {
-                populateEvent(sib, event);
+        
+        public boolean next() {
+            while (it.hasNext()) {
+                String line = it.next();
+                if (line == null || line.length() == 0 || line.charAt(0) == '#') {
+                    continue;
+                }
+                String[] cols = StringUtils.strip(line).split("\t");
+                if (!headerFound) {
+                    // process header, look for column names, and assign column-indexes
+                    headerFound = true;
+                    for (int i=0; i< cols.length; i++) {
+                        switch(cols[i]) {
+                        case "junction":
+                            juncIdx = i;
+                            break;
+                        case "strand":
+                            strandIdx = i;
+                            break;
+                        case "site_type":
+                            siteTypeIdx = i;
+                            break;
+                        case "pct_diff":
+                            pctIdx = i;
+                            break;
+                        case "FDR (B-H)":
+                            fdrIdx = i;
+                            break;
+                        default:
+                            break;
+                        }
+                    }
+                    continue;
+                }
+                
+                fdr = Double.parseDouble(cols[fdrIdx]);
+                pct = Double.parseDouble(cols[pctIdx]);
+                junction = new JunctionKey(cols[juncIdx],Strand.parse(cols[strandIdx]));
+                region = GenomeSpan.parse(junction.name, true);
+                isDonor = cols[siteTypeIdx].equals("donor");
+                return true;
             }
+            return false;
         }
-
-        if (acceptors.containsKey(junction.acceptor)) {
-            for (JunctionKey sib: acceptors.get(junction.acceptor)) {
-                populateEvent(sib, event);
-            }
+        
+        public void close() throws IOException {
+            reader.close();
         }
     }
 }
-
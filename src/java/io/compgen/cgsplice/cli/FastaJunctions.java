@@ -1,21 +1,38 @@
 package io.compgen.cgsplice.cli;
 
+import io.compgen.cgsplice.fasta.FastaWriter;
+import io.compgen.cgsplice.fasta.JunctionFlank;
+import io.compgen.cgsplice.fasta.MappedFastaReader;
+import io.compgen.cgsplice.fasta.SequentialFlankReader;
+import io.compgen.cgsplice.support.AbstractMetricsCommand;
 import io.compgen.cmdline.annotation.Command;
 import io.compgen.cmdline.annotation.Exec;
 import io.compgen.cmdline.annotation.Option;
 import io.compgen.cmdline.annotation.UnnamedArg;
 import io.compgen.cmdline.exceptions.CommandArgumentException;
-import io.compgen.cmdline.impl.AbstractOutputCommand;
 import io.compgen.common.StringLineReader;
 import io.compgen.common.StringUtils;
 import io.compgen.ngsutils.annotation.GenomeSpan;
 import io.compgen.ngsutils.fasta.FastaReader;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 @Command(name="junction-flank", desc="Extract sequences flanking a junction.", category="splicing", doc="Junctions should be specified as ref:start-end, where start and end are the 0-based coordinates that mark the *intronic* parts of the junction. Junctions can also be semi-colon delimited to include more that one event per line.")
-public class FastaJunctions extends AbstractOutputCommand {
+public class FastaJunctions extends AbstractMetricsCommand {
+    private static final int PARALLEL_CHUNK_SIZE = 1000;
+
     
     private String fastaName = null;
     private String juncName = null;
@@ -24,6 +41,10 @@ public class FastaJunctions extends AbstractOutputCommand {
     private int size = 100;
     private boolean markJunction = false;
     private boolean markOverlap = false;
+    private boolean batch = false;
+    private int threads = 1;
+
+    private FastaWriter writer = null;
     
     @UnnamedArg(name = "FILE chrom:start-end")
     public void setArgs(List<String> args) {
@@ -59,84 +80,212 @@ public class FastaJunctions extends AbstractOutputCommand {
         this.size = size;
     }
 
+    @Option(desc="Extract all junctions from --file in genomic order (one sequential pass through the FASTA file if it isn't indexed)", name="batch")
+    public void setBatch(boolean batch) {
+        this.batch = batch;
+    }
+
+    @Option(desc="Number of threads to use for extracting flanks from --file (requires an indexed FASTA file)", name="threads", defaultValue="1")
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
     @Exec
     public void exec() throws CommandArgumentException, IOException {
         if (fastaName == null) {
             throw new CommandArgumentException("Missing/Invalid arguments!");
         }
+        if (junction == null && juncName == null) {
+            throw new CommandArgumentException("Missing junction or --file!");
+        }
+        if (threads < 1) {
+            throw new CommandArgumentException("--threads must be at least 1!");
+        }
+        if (threads > 1 && !MappedFastaReader.isIndexed(fastaName)) {
+            throw new CommandArgumentException("--threads requires an uncompressed FASTA file with a .fai index!");
+        }
+
+        writer = new FastaWriter(out, wrap);
+        metrics.start("flanks");
         
-        FastaReader fasta = FastaReader.open(fastaName);
-        
-        if (junction != null) {
-            processRegion(fasta, junction);
-        } else {
-            for (final String line : new StringLineReader(juncName)) {
-                String stripped = StringUtils.strip(line);
-                if (verbose) {
-                    System.err.println(stripped);
-                }
-                if (stripped.length() > 0) {
-                    String[] cols = StringUtils.strip(line).split("\t");
-                    String name = null;
-                    if (cols.length > 1) {
-                        name = cols[1];
-                    }
-                    
-                    String[] junctions = cols[0].split(";");
-                    for (int i=0; i< junctions.length; i++) {
-                        GenomeSpan junc = GenomeSpan.parse(junctions[i], true);
-                        processRegion(fasta, junc, (junctions.length > 1) ? name+"-"+(i+1) : name);
-                    }
+        if (MappedFastaReader.isIndexed(fastaName)) {
+            List<JunctionFlank> flanks;
+            if (junction != null) {
+                flanks = new ArrayList<JunctionFlank>();
+                flanks.add(new JunctionFlank(junction, null, size));
+            } else {
+                flanks = readJunctionFile();
+            }
+
+            MappedFastaReader fasta = new MappedFastaReader(fastaName);
+            if (threads > 1) {
+                writeParallel(fasta, flanks);
+            } else {
+                fetchFlanks(fasta, flanks);
+                for (JunctionFlank flank: flanks) {
+                    writeFlank(writer, flank);
                 }
             }
+            fasta.close();
+        } else if (junction != null) {
+            FastaReader fasta = FastaReader.open(fastaName);
+            processRegion(fasta, new JunctionFlank(junction, null, size));
+            fasta.close();        
+        } else if (batch) {
+            List<JunctionFlank> flanks = readJunctionFile();
+            new SequentialFlankReader(fastaName).fetch(flanks);
+            for (JunctionFlank flank: flanks) {
+                writeFlank(writer, flank);
+            }
+        } else {
+            FastaReader fasta = FastaReader.open(fastaName);
+            for (JunctionFlank flank: readJunctionFile()) {
+                processRegion(fasta, flank);
+            }
+            fasta.close();        
         }
         
-        fasta.close();        
+        writer.close();
+        metrics.stop("flanks");
+        writeMetricsJson();
     }
     
-    protected void processRegion(FastaReader fasta, GenomeSpan region) throws IOException {
-        processRegion(fasta, region, null);
+    /**
+     * Splits the junction list into chunks that are fetched and formatted on a thread pool. 
+     * Formatted chunks are written in submission order, so the output matches the input order.
+     * Only a few chunks per thread are allowed to be in-flight at a time.
+     */
+    private void writeParallel(final MappedFastaReader fasta, List<JunctionFlank> flanks) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+        try {
+            for (int i=0; i<flanks.size(); i+=PARALLEL_CHUNK_SIZE) {
+                final List<JunctionFlank> chunk = flanks.subList(i, Math.min(flanks.size(), i+PARALLEL_CHUNK_SIZE));
+                pending.add(pool.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        fetchFlanks(fasta, chunk);
+                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                        FastaWriter chunkWriter = new FastaWriter(baos, wrap);
+                        for (JunctionFlank flank: chunk) {
+                            writeFlank(chunkWriter, flank);
+                            flank.setSequences(null, null);
+                        }
+                        chunkWriter.flush();
+                        return baos.toByteArray();
+                    }}));
+                
+                if (pending.size() >= threads * 4) {
+                    writer.writeRaw(getChunk(pending.removeFirst()));
+                }
+            }
+            while (!pending.isEmpty()) {
+                writer.writeRaw(getChunk(pending.removeFirst()));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
     }
-    protected void processRegion(FastaReader fasta, GenomeSpan region, String name) throws IOException {
-        int up_start = region.start - size;
-        int down_end = region.end + size;
 
-        String upseq = fasta.fetchSequence(region.ref, up_start, region.start);
-        String downseq = fasta.fetchSequence(region.ref, region.end, down_end);
-        String seq;
-        
-        if (markJunction) {
-            seq = upseq.substring(0, upseq.length()-1);
-            seq += "[" + upseq.charAt(upseq.length()-1);
-            seq += downseq.charAt(0) + "]";
-            seq += downseq.substring(1);
-        } else if (markOverlap) {
-            seq = upseq + "-" + downseq;
-        } else {
-            seq = upseq + downseq;
+    private byte[] getChunk(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
         }
+    }
 
-        if (name == null) {
-            writeSeq(region.ref+":"+up_start+"-"+region.start+","+region.end+"-"+down_end, seq);
-        } else {
-            writeSeq(name, seq, region.ref+":"+up_start+"-"+region.start+","+region.end+"-"+down_end);
+    /**
+     * Copies the flanking sequences straight out of the mapped FASTA file. Requests are
+     * fetched in genomic order so that pages are touched sequentially, but the list itself
+     * stays in input order.
+     */
+    private void fetchFlanks(MappedFastaReader fasta, List<JunctionFlank> flanks) throws IOException {
+        List<JunctionFlank> sorted = new ArrayList<JunctionFlank>(flanks);
+        if (batch) {
+            Collections.sort(sorted, new Comparator<JunctionFlank>() {
+                @Override
+                public int compare(JunctionFlank o1, JunctionFlank o2) {
+                    if (!o1.junction.ref.equals(o2.junction.ref)) {
+                        return o1.junction.ref.compareTo(o2.junction.ref);
+                    }
+                    return Integer.compare(o1.junction.start, o2.junction.start);
+                }});
+        }
+
+        for (JunctionFlank flank: sorted) {
+            byte[] up = new byte[flank.size];
+            byte[] down = new byte[flank.size];
+            fasta.fetch(flank.junction.ref, flank.getUpstreamStart(), flank.junction.start, up, 0);
+            fasta.fetch(flank.junction.ref, flank.junction.end, flank.getDownstreamEnd(), down, 0);
+            flank.setSequences(up, down);
         }
     }
     
-    protected void writeSeq(String name, String seq) {
-        writeSeq(name, seq, null);
+    private List<JunctionFlank> readJunctionFile() throws IOException {
+        List<JunctionFlank> flanks = new ArrayList<JunctionFlank>();
+        StringLineReader reader = new StringLineReader(juncName);
+        for (final String line : reader) {
+            String stripped = StringUtils.strip(line);
+            if (verbose) {
+                System.err.println(stripped);
+            }
+            if (stripped.length() > 0) {
+                String[] cols = stripped.split("\t");
+                String name = null;
+                if (cols.length > 1) {
+                    name = cols[1];
+                }
+                
+                String[] junctions = cols[0].split(";");
+                for (int i=0; i< junctions.length; i++) {
+                    GenomeSpan junc = GenomeSpan.parse(junctions[i], true);
+                    flanks.add(new JunctionFlank(junc, (junctions.length > 1) ? name+"-"+(i+1) : name, size));
+                }
+            }
+        }
+        reader.close();
+        return flanks;
     }
-    
-    protected void writeSeq(String name, String seq, String comment) {
-        System.out.print(">"+name);
-        if (comment != null) {
-            System.out.print(" " + comment);
+
+    protected void processRegion(FastaReader fasta, JunctionFlank flank) throws IOException {
+        String upseq = fasta.fetchSequence(flank.junction.ref, flank.getUpstreamStart(), flank.junction.start);
+        String downseq = fasta.fetchSequence(flank.junction.ref, flank.junction.end, flank.getDownstreamEnd());
+        flank.setSequences(upseq.getBytes(), downseq.getBytes());
+        writeFlank(writer, flank);
+    }
+
+    protected void writeFlank(FastaWriter writer, JunctionFlank flank) throws IOException {
+        byte[] upseq = flank.getUpstream();
+        byte[] downseq = flank.getDownstream();
+
+        if (flank.name == null) {
+            writer.start(flank.getRegionName(), null);
+        } else {
+            writer.start(flank.name, flank.getRegionName());
         }
-        System.out.println();
-        while (seq.length() > wrap) {
-            System.out.println(seq.substring(0, wrap));
-            seq = seq.substring(wrap);
+
+        if (markJunction) {
+            writer.append(upseq, 0, upseq.length-1);
+            writer.append('[');
+            writer.append(upseq, upseq.length-1, 1);
+            writer.append(downseq, 0, 1);
+            writer.append(']');
+            writer.append(downseq, 1, downseq.length-1);
+        } else if (markOverlap) {
+            writer.append(upseq);
+            writer.append('-');
+            writer.append(downseq);
+        } else {
+            writer.append(upseq);
+            writer.append(downseq);
         }
-        System.out.println(seq);        
+        writer.end();
     }
 }
@@ -6,27 +6,44 @@ import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.ValidationStringency;
+import io.compgen.cgsplice.fasta.CachedReferenceWindow;
+import io.compgen.cgsplice.fasta.MappedFastaReader;
+import io.compgen.cgsplice.junction.SpliceMotif;
+import io.compgen.cgsplice.support.AbstractMetricsCommand;
+import io.compgen.cgsplice.support.AsyncTabWriter;
+import io.compgen.cgsplice.support.EventRecorder;
+import io.compgen.cgsplice.support.Events;
 import io.compgen.cmdline.annotation.Command;
 import io.compgen.cmdline.annotation.Exec;
 import io.compgen.cmdline.annotation.Option;
 import io.compgen.cmdline.annotation.UnnamedArg;
-import io.compgen.cmdline.impl.AbstractOutputCommand;
-import io.compgen.common.TabWriter;
+import io.compgen.cmdline.exceptions.CommandArgumentException;
+import io.compgen.common.StringLineReader;
 import io.compgen.ngsutils.NGSUtils;
 import io.compgen.ngsutils.annotation.GenomeSpan;
 import io.compgen.ngsutils.bam.Orientation;
+import io.compgen.ngsutils.bam.Strand;
 import io.compgen.ngsutils.bam.support.ReadUtils;
 import io.compgen.ngsutils.bam.support.ReadUtils.MappedReadCounter;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
 @Command(name="junction-count", desc="Counts the number of reads that map to splice junctions", category="splicing", experimental=true)
-public class JunctionCount extends AbstractOutputCommand {
+public class JunctionCount extends AbstractMetricsCommand {
+    private static final int MOTIF_WINDOW_SIZE = 64 * 1024;
+    private static final String MANIFEST = "manifest.txt";
+    
     private String filename = null;
+    private String refFilename = null;
     
     private boolean lenient = false;
     private boolean silent = false;
@@ -34,9 +51,13 @@ public class JunctionCount extends AbstractOutputCommand {
     private boolean editDistance = false;
     private boolean retainedIntrons = false;
     private int minOverlap = 10;
+    private String checkpointDir = null;
 
     private Orientation orient = Orientation.UNSTRANDED;
     
+    private final byte[] motifStart = new byte[2];
+    private final byte[] motifEnd = new byte[2];
+    
     @UnnamedArg(name = "FILE")
     public void setFilename(String filename) {
         this.filename = filename;
@@ -88,8 +109,31 @@ public class JunctionCount extends AbstractOutputCommand {
         this.editDistance = val;
     }
 
+    @Option(desc="Reference FASTA file (indexed) -- report the splice-site motif for each junction", name="ref", helpValue="fname")
+    public void setRefFilename(String refFilename) {
+        this.refFilename = refFilename;
+    }
+
+    @Option(desc="Checkpoint directory. Each finished contig is saved here, and a rerun with the same directory skips contigs that are already done", name="checkpoint", helpValue="dir")
+    public void setCheckpointDir(String checkpointDir) {
+        this.checkpointDir = checkpointDir;
+    }
+
     @Exec
-    public void exec() throws IOException {
+    public void exec() throws IOException, CommandArgumentException {
+        if (checkpointDir != null && filename.equals("-")) {
+            throw new CommandArgumentException("--checkpoint can't be used with stdin!");
+        }
+
+        MappedFastaReader fasta = null;
+        if (refFilename != null) {
+            if (!MappedFastaReader.isIndexed(refFilename)) {
+                throw new CommandArgumentException("--ref must be an uncompressed FASTA file with a .fai index!");
+            }
+            fasta = new MappedFastaReader(refFilename);
+        }
+
+
         SamReaderFactory readerFactory = SamReaderFactory.makeDefault();
         if (lenient) {
             readerFactory.validationStringency(ValidationStringency.LENIENT);
@@ -102,22 +146,31 @@ public class JunctionCount extends AbstractOutputCommand {
             reader = readerFactory.open(SamInputResource.of(System.in));
         } else {
             reader = readerFactory.open(new File(filename));
+            metrics.addBytes("count", new File(filename).length());
         }
 
-        TabWriter writer = new TabWriter(out);
-        writer.write_line("## program: " + NGSUtils.getVersion());
-        writer.write_line("## cmd: " + NGSUtils.getArgs());
-        writer.write_line("## input: " + filename);
-//        writer.write_line("## annotation: " + gtfFilename);
-        writer.write_line("## library-orientation: " + orient.toString());
-        writer.write_line("## min-overlap: " + minOverlap);
+        List<String> header = new ArrayList<String>();
+        header.add("## input: " + filename);
+//        header.add("## annotation: " + gtfFilename);
+        header.add("## library-orientation: " + orient.toString());
+        header.add("## min-overlap: " + minOverlap);
+        if (fasta != null) {
+            header.add("## reference: " + refFilename);
+        }
         
-        writer.write_line("## counts: junction-spanning");
+        header.add("## counts: junction-spanning");
         if (editDistance) {
-            writer.write_line("## counts: edit-distance (NM) ");
+            header.add("## counts: edit-distance (NM) ");
         }
         if (retainedIntrons) {
-            writer.write_line("## counts: retained-introns");
+            header.add("## counts: retained-introns");
+        }
+
+        AsyncTabWriter writer = new AsyncTabWriter(out);
+        writer.write_line("## program: " + NGSUtils.getVersion());
+        writer.write_line("## cmd: " + NGSUtils.getArgs());
+        for (String line: header) {
+            writer.write_line(line);
         }
 
         writer.write("junction", "strand");
@@ -125,6 +178,9 @@ public class JunctionCount extends AbstractOutputCommand {
         if (editDistance) {
             writer.write("avg-edit-distance");
         }
+        if (fasta != null) {
+            writer.write("motif", "motif_type", "motif_strand");
+        }
         writer.eol();
         
         int readLength = ReadUtils.getSamReadLength(reader);
@@ -132,61 +188,206 @@ public class JunctionCount extends AbstractOutputCommand {
         	System.err.println("Read length: "+readLength);
         }
 
-        for (SAMSequenceRecord refRecord: reader.getFileHeader().getSequenceDictionary().getSequences()) {
-            if (verbose) {
-                System.err.println("Finding junctions for: " + refRecord.getSequenceName());
+        List<SAMSequenceRecord> refs = reader.getFileHeader().getSequenceDictionary().getSequences();
+        if (checkpointDir == null) {
+            for (SAMSequenceRecord refRecord: refs) {
+                countContig(reader, refRecord, readLength, fasta, writer);
             }
-            
-            SortedMap<GenomeSpan, MappedReadCounter> counters = ReadUtils.countJunctions(reader, refRecord.getSequenceName(), 0, refRecord.getSequenceLength(), orient, minOverlap, editDistance ? "NM": null);
-
-            if (verbose) {
-                System.err.println("                found: " + counters.size());
+        } else {
+            File dir = new File(checkpointDir);
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Unable to create checkpoint directory: " + dir);
             }
-            
-            SortedSet<GenomeSpan> intronCache = new TreeSet<GenomeSpan>();
 
-            for (GenomeSpan junc: counters.keySet()) {
-                writer.write(junc.ref+":"+junc.start+"-"+junc.end);
-                writer.write(""+junc.strand);
-                writer.write(counters.get(junc).getCountR1());
-                if (editDistance) {
-                    writer.write(counters.get(junc).getTagMeanR1());
+            // the input size is also checked, in case the BAM file was replaced
+            header.add("## input-size: " + new File(filename).length());
+            File manifest = new File(dir, MANIFEST);
+            Set<String> finished = readManifest(manifest, header);
+
+            for (int i=0; i<refs.size(); i++) {
+                SAMSequenceRecord refRecord = refs.get(i);
+                File contigFile = new File(dir, "contig-" + i + ".txt");
+                if (finished.contains(i + "\t" + refRecord.getSequenceName() + "\t" + contigFile.length())) {
+                    if (verbose) {
+                        System.err.println("Checkpoint found for: " + refRecord.getSequenceName());
+                    }
+                    continue;
                 }
-                writer.eol();
-                
-                if (retainedIntrons) {
-                    intronCache.add(new GenomeSpan(junc.ref, junc.start, junc.strand));
-                    intronCache.add(new GenomeSpan(junc.ref, junc.end, junc.strand));                	
+
+                File tmp = new File(dir, "contig-" + i + ".txt.tmp");
+                AsyncTabWriter contigWriter = new AsyncTabWriter(tmp.getPath());
+                countContig(reader, refRecord, readLength, fasta, contigWriter);
+                contigWriter.close();
+
+                if (contigFile.exists() && !contigFile.delete()) {
+                    throw new IOException("Unable to replace checkpoint file: " + contigFile);
+                }
+                if (!tmp.renameTo(contigFile)) {
+                    throw new IOException("Unable to write checkpoint file: " + contigFile);
                 }
+
+                FileWriter fw = new FileWriter(manifest, true);
+                fw.write(i + "\t" + refRecord.getSequenceName() + "\t" + contigFile.length() + "\n");
+                fw.close();
+            }
+
+            // concatenate the contigs in sequence dictionary order
+            metrics.start("concat");
+            long startBytes = writer.getBytesWritten();
+            for (int i=0; i<refs.size(); i++) {
+                StringLineReader lines = new StringLineReader(new File(dir, "contig-" + i + ".txt").getPath());
+                for (String line: lines) {
+                    writer.write_line(line);
+                }
+                lines.close();
             }
+            metrics.stop("concat");
+            metrics.addBytes("concat", writer.getBytesWritten() - startBytes);
+        }
+
+        metrics.write(writer);
+        writer.close();
+        reader.close();
+        if (fasta != null) {
+            fasta.close();
+        }
+        writeMetricsJson();
+    }
+
+    /**
+     * The manifest starts with the header lines for the run (input, options), followed by one
+     * line for each finished contig: index, name, and checkpoint file size. A new manifest is
+     * written if one doesn't exist.
+     * 
+     * @return the finished contig lines
+     */
+    private Set<String> readManifest(File manifest, List<String> header) throws IOException, CommandArgumentException {
+        Set<String> finished = new HashSet<String>();
+        if (!manifest.exists()) {
+            FileWriter fw = new FileWriter(manifest);
+            for (String line: header) {
+                fw.write(line + "\n");
+            }
+            fw.close();
+            return finished;
+        }
+
+        List<String> existing = new ArrayList<String>();
+        StringLineReader reader = new StringLineReader(manifest.getPath());
+        for (String line: reader) {
+            if (line.startsWith("##")) {
+                existing.add(line);
+            } else if (line.length() > 0) {
+                finished.add(line);
+            }
+        }
+        reader.close();
+
+        if (!existing.equals(header)) {
+            throw new CommandArgumentException("The checkpoint directory is from a run with a different input or options: " + manifest.getParent());
+        }
+        return finished;
+    }
+
+    /**
+     * Counts the junctions (and retained introns) for one contig, and writes them.
+     */
+    private void countContig(SamReader reader, SAMSequenceRecord refRecord, int readLength, MappedFastaReader fasta, AsyncTabWriter writer) throws IOException {
+        if (verbose) {
+            System.err.println("Finding junctions for: " + refRecord.getSequenceName());
+        }
+        
+        metrics.start("count");
+        EventRecorder.Span span = Events.contigCount(refRecord.getSequenceName());
+        SortedMap<GenomeSpan, MappedReadCounter> counters = ReadUtils.countJunctions(reader, refRecord.getSequenceName(), 0, refRecord.getSequenceLength(), orient, minOverlap, editDistance ? "NM": null);
+        span.end(counters.size(), 0);
+        metrics.stop("count");
+        metrics.addRecords("count", counters.size());
+
+        if (verbose) {
+            System.err.println("                found: " + counters.size());
+        }
+        
+        SortedSet<GenomeSpan> intronCache = new TreeSet<GenomeSpan>();
+
+        // junctions are sorted, so the donor-side and acceptor-side lookups each
+        // move along the contig and can be served from a cached window.
+        CachedReferenceWindow donorWindow = null;
+        CachedReferenceWindow acceptorWindow = null;
+        if (fasta != null && fasta.hasReference(refRecord.getSequenceName())) {
+            donorWindow = new CachedReferenceWindow(fasta, refRecord.getSequenceName(), MOTIF_WINDOW_SIZE);
+            acceptorWindow = new CachedReferenceWindow(fasta, refRecord.getSequenceName(), MOTIF_WINDOW_SIZE);
+        }
+
+        metrics.start("output");
+        long startBytes = writer.getBytesWritten();
+        for (GenomeSpan junc: counters.keySet()) {
+            writer.write(junc.ref+":"+junc.start+"-"+junc.end);
+            writer.write(""+junc.strand);
+            writer.write(counters.get(junc).getCountR1());
+            if (editDistance) {
+                writer.write(counters.get(junc).getTagMeanR1());
+            }
+            if (fasta != null) {
+                writeMotif(writer, junc, donorWindow, acceptorWindow);
+            }
+            writer.eol();
             
             if (retainedIntrons) {
+                intronCache.add(new GenomeSpan(junc.ref, junc.start, junc.strand));
+                intronCache.add(new GenomeSpan(junc.ref, junc.end, junc.strand));                	
+            }
+        }
+        metrics.stop("output");
+        metrics.addRecords("output", counters.size());
+        metrics.addBytes("output", writer.getBytesWritten() - startBytes);
+        
+        if (retainedIntrons) {
+            if (verbose) {
+                System.err.println("    - looking for retained introns");
+            }
+
+            metrics.start("retained-introns");
+            startBytes = writer.getBytesWritten();
+            for (GenomeSpan spliceSite: intronCache) {
+                MappedReadCounter counter = new MappedReadCounter(editDistance ? "NM": null, false);
+                for (SAMRecord read: ReadUtils.findOverlappingReads(reader, spliceSite, orient, readLength, minOverlap)) {
+                    counter.addRead(read);
+                }
                 if (verbose) {
-                    System.err.println("    - looking for retained introns");
+                    System.err.println(spliceSite+" ("+counter.getCountR1()+")");
                 }
 
-                for (GenomeSpan spliceSite: intronCache) {
-                    MappedReadCounter counter = new MappedReadCounter(editDistance ? "NM": null, false);
-                    for (SAMRecord read: ReadUtils.findOverlappingReads(reader, spliceSite, orient, readLength, minOverlap)) {
-                        counter.addRead(read);
-                    }
-                    if (verbose) {
-                        System.err.println(spliceSite+" ("+counter.getCountR1()+")");
-                    }
-
-                    writer.write(spliceSite.ref+":"+spliceSite.start+"-"+spliceSite.start);
-                    writer.write(""+spliceSite.strand);
-                    writer.write(counter.getCountR1());
-                    if (editDistance) {
-                        writer.write(counter.getTagMeanR1());
-                    }
-                    writer.eol();
+                writer.write(spliceSite.ref+":"+spliceSite.start+"-"+spliceSite.start);
+                writer.write(""+spliceSite.strand);
+                writer.write(counter.getCountR1());
+                if (editDistance) {
+                    writer.write(counter.getTagMeanR1());
                 }
+                if (fasta != null) {
+                    writer.write(".", ".", ".");
+                }
+                writer.eol();
             }
+            metrics.stop("retained-introns");
+            metrics.addRecords("retained-introns", intronCache.size());
+            metrics.addBytes("retained-introns", writer.getBytesWritten() - startBytes);
         }
+    }
 
-        writer.close();
-        reader.close();
+    private void writeMotif(AsyncTabWriter writer, GenomeSpan junc, CachedReferenceWindow donorWindow, CachedReferenceWindow acceptorWindow) throws IOException {
+        if (donorWindow == null || junc.end - junc.start < 4) {
+            writer.write(".", ".", ".");
+            return;
+        }
+
+        donorWindow.fetch(junc.start, junc.start + 2, motifStart, 0);
+        acceptorWindow.fetch(junc.end - 2, junc.end, motifEnd, 0);
+
+        // for unstranded libraries, the junction strand is just the read strand, so
+        // the motif strand has to be inferred from the sequence.
+        SpliceMotif motif = SpliceMotif.classify(motifStart, motifEnd, orient == Orientation.UNSTRANDED ? Strand.NONE : junc.strand);
+        writer.write(motif.motif, motif.type.toString(), motif.strand == Strand.NONE ? "." : motif.strand.toString());
     }
 }
 
@@ -1,22 +1,28 @@
 package io.compgen.cgsplice.cli;
 
+import io.compgen.cgsplice.junction.JunctionContrast;
 import io.compgen.cgsplice.junction.JunctionCounts;
 import io.compgen.cgsplice.junction.JunctionDiff;
 import io.compgen.cgsplice.junction.JunctionDiffException;
+import io.compgen.cgsplice.junction.JunctionDiffShard;
 import io.compgen.cgsplice.junction.JunctionDiffStats;
 import io.compgen.cgsplice.junction.JunctionDiffStats.JunctionDiffSample;
 import io.compgen.cgsplice.junction.JunctionKey;
 import io.compgen.cgsplice.junction.JunctionStats;
+import io.compgen.cgsplice.stats.SketchNullDistribution;
+import io.compgen.cgsplice.support.AbstractMetricsCommand;
+import io.compgen.cgsplice.support.AsyncTabWriter;
 import io.compgen.cmdline.annotation.Command;
 import io.compgen.cmdline.annotation.Exec;
 import io.compgen.cmdline.annotation.Option;
 import io.compgen.cmdline.annotation.UnnamedArg;
-import io.compgen.cmdline.impl.AbstractOutputCommand;
+import io.compgen.cmdline.exceptions.CommandArgumentException;
+import io.compgen.common.StringLineReader;
 import io.compgen.common.StringUtils;
-import io.compgen.common.TabWriter;
 import io.compgen.ngsutils.NGSUtils;
 import io.compgen.ngsutils.support.stats.StatUtils;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -24,13 +30,27 @@ import java.util.List;
 import java.util.Set;
 
 @Command(name="splice-diff", desc="Given [junction-count] files, find differentially spliced junctions", category="splicing", experimental=true)
-public class SpliceDiff extends AbstractOutputCommand {
+public class SpliceDiff extends AbstractMetricsCommand {
     private List<String> filenames;
-    private Integer[] groups;
+    private Integer[] groups = null;
+    private String designFilename = null;
+    private String outputPrefix = "";
     
     private double maxEditDistance = -1;
     private int minTotalCount = -1;
     
+    private boolean adaptive = false;
+    private int adaptiveExceedances = 10;
+    private int adaptiveMaxPermutations = 10000;
+    private long seed = 0;
+    private double nullSketch = -1;
+
+    private String maxMemory = null;
+    private String tmpDir = null;
+
+    private String shardDir = null;
+    private String contigs = null;
+    
     @UnnamedArg(name = "count_file1 count_file2...")
     public void setFilename(List<String> filenames) {
         this.filenames = filenames;
@@ -46,29 +66,165 @@ public class SpliceDiff extends AbstractOutputCommand {
         this.minTotalCount = minTotalCount;
     }
 
+    @Option(desc="Calculate p-values for each junction with adaptive permutations (instead of a pooled null distribution)", name="adaptive")
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    @Option(desc="Adaptive mode: stop permuting a junction after {val} permuted t-scores are as extreme as the true t-score", name="adaptive-exceedances", defaultValue="10")
+    public void setAdaptiveExceedances(int adaptiveExceedances) {
+        this.adaptiveExceedances = adaptiveExceedances;
+    }
+
+    @Option(desc="Adaptive mode: maximum number of permutations per junction", name="adaptive-max-perms", defaultValue="10000")
+    public void setAdaptiveMaxPermutations(int adaptiveMaxPermutations) {
+        this.adaptiveMaxPermutations = adaptiveMaxPermutations;
+    }
+
+    @Option(desc="Keep the permuted null distributions as fixed-size log histograms with this relative error (ex: 0.001). P-values are never smaller than the exact p-values, and match the exact p-value for a t-score within 2x this error. Each histogram uses about 330/err bytes (min err: 1e-5)", name="null-sketch", helpValue="err")
+    public void setNullSketch(double nullSketch) {
+        this.nullSketch = nullSketch;
+    }
+
+    @Option(desc="Random seed for adaptive permutations", name="seed", defaultValue="0")
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
     @Option(desc="Comma-delimited list of groups in the same order as the files are given (1=control, 2=experimental, Example: --groups 1,1,1,2,2,2)", name="groups")
     public void setGroups(String value) {
+        groups = parseGroups(value);
+    }
+
+    @Option(desc="Design file with multiple contrasts (one per line: name<TAB>groups, where groups are given like --groups, 0=not included). Each contrast is written to {prefix}{name}.txt", name="design")
+    public void setDesignFilename(String designFilename) {
+        this.designFilename = designFilename;
+    }
+
+    @Option(desc="Output filename prefix for --design contrasts", name="prefix", defaultValue="")
+    public void setOutputPrefix(String outputPrefix) {
+        this.outputPrefix = outputPrefix;
+    }
+
+    @Option(desc="Memory budget for the junction tables (ex: 8g, 500m). Larger tables are spilled to disk and processed one contig at a time", name="max-memory")
+    public void setMaxMemory(String maxMemory) {
+        this.maxMemory = maxMemory;
+    }
+
+    @Option(desc="Temporary directory for spilled junction tables (default: java.io.tmpdir)", name="tmpdir", helpValue="dir")
+    public void setTmpDir(String tmpDir) {
+        this.tmpDir = tmpDir;
+    }
+
+    @Option(desc="Shard mode: write the t-scores and null distributions to this directory (instead of the final table). Run [splice-gather] on all of the shards to calculate p-values and FDR", name="shard", helpValue="dir")
+    public void setShardDir(String shardDir) {
+        this.shardDir = shardDir;
+    }
+
+    @Option(desc="Shard mode: only use junctions on these contigs (comma-delimited)", name="contigs", helpValue="chr1,chr2,...")
+    public void setContigs(String contigs) {
+        this.contigs = contigs;
+    }
+
+    private static long parseMemory(String val) throws CommandArgumentException {
+        String v = val.trim().toLowerCase();
+        long mult = 1;
+        if (v.endsWith("k")) {
+            mult = 1024L;
+        } else if (v.endsWith("m")) {
+            mult = 1024L * 1024;
+        } else if (v.endsWith("g")) {
+            mult = 1024L * 1024 * 1024;
+        } else if (v.endsWith("t")) {
+            mult = 1024L * 1024 * 1024 * 1024;
+        }
+        if (mult > 1) {
+            v = v.substring(0, v.length() - 1);
+        }
+        try {
+            long bytes = Long.parseLong(v) * mult;
+            if (bytes <= 0) {
+                throw new CommandArgumentException("--max-memory must be greater than 0!");
+            }
+            return bytes;
+        } catch (NumberFormatException e) {
+            throw new CommandArgumentException("Invalid --max-memory value: " + val);
+        }
+    }
+
+    private static Integer[] parseGroups(String value) {
         List<Integer> tmp = new ArrayList<Integer>();
         for (String s:value.split(",")) {
-            tmp.add(Integer.parseInt(s));
+            tmp.add(Integer.parseInt(s.trim()));
         }
         
-        groups = tmp.toArray(new Integer[tmp.size()]);
-        
+        return tmp.toArray(new Integer[tmp.size()]);
     }
 
     @Exec
-    public void exec() throws IOException, JunctionDiffException {
-        
+    public void exec() throws IOException, JunctionDiffException, CommandArgumentException {
+        if (groups == null && designFilename == null) {
+            throw new CommandArgumentException("Missing --groups or --design!");
+        }
+        if (groups != null && designFilename != null) {
+            throw new CommandArgumentException("--groups and --design can't be used together!");
+        }
+
+        if (contigs != null && shardDir == null) {
+            throw new CommandArgumentException("--contigs requires --shard!");
+        }
+
         JunctionDiff juncDiff = new JunctionDiff();
         juncDiff.setMinTotalCount(minTotalCount);
         juncDiff.setMaxEditDistance(maxEditDistance);
-        JunctionDiffStats jdStats = juncDiff.findJunctions(filenames, groups);
+        juncDiff.setMetrics(metrics);
+        if (maxMemory != null) {
+            juncDiff.setMaxMemory(parseMemory(maxMemory), tmpDir == null ? null : new File(tmpDir));
+        }
+        if (nullSketch != -1) {
+            if (nullSketch < SketchNullDistribution.MIN_RELATIVE_ERROR || nullSketch > 0.5) {
+                throw new CommandArgumentException("--null-sketch must be between " + SketchNullDistribution.MIN_RELATIVE_ERROR + " and 0.5!");
+            }
+            if (adaptive) {
+                throw new CommandArgumentException("--null-sketch can't be used with --adaptive!");
+            }
+            juncDiff.setNullSketch(nullSketch);
+        }
+        if (shardDir != null) {
+            Set<String> contigSet = null;
+            if (contigs != null) {
+                contigSet = new HashSet<String>();
+                for (String contig: contigs.split(",")) {
+                    contigSet.add(contig.trim());
+                }
+            }
+            juncDiff.setContigs(contigSet);
+        }
+        if (adaptive) {
+            if (adaptiveExceedances < 1 || adaptiveMaxPermutations < 1) {
+                throw new CommandArgumentException("--adaptive-exceedances and --adaptive-max-perms must be at least 1!");
+            }
+            juncDiff.setAdaptive(adaptiveExceedances, adaptiveMaxPermutations);
+            juncDiff.setSeed(seed);
+        }
+
+        JunctionDiffStats jdStats;
+        if (designFilename == null) {
+            jdStats = juncDiff.findJunctions(filenames, groups);
+        } else {
+            jdStats = juncDiff.load(filenames);
+            readDesign(juncDiff);
+            juncDiff.calcPermutations();
+        }
         
         if (verbose) {
             System.err.println("Samples:");
             for (JunctionDiffSample sample: jdStats.getSamples()) {
-                System.err.println("  " + sample.sampleName + " [" + sample.group + "] - " + sample.filename);
+                if (designFilename == null) {
+                    System.err.println("  " + sample.sampleName + " [" + sample.group + "] - " + sample.filename);
+                } else {
+                    System.err.println("  " + sample.sampleName + " - " + sample.filename);
+                }
             }
             System.err.println("Junctions       : "+jdStats.getTotalJunctions());
             System.err.println("Filtered        : "+jdStats.getFilteredJunctions());
@@ -77,59 +233,211 @@ public class SpliceDiff extends AbstractOutputCommand {
             System.err.println("Final junctions : "+jdStats.getDonorAcceptorFilteredJunctions());
         }
         
-        List<Double> fdrDonorR1 = new ArrayList<Double>();
-        List<Double> fdrAcceptorR1 = new ArrayList<Double>();
+        if (shardDir != null) {
+            writeShard(juncDiff, jdStats);
+            juncDiff.close();
+            writeMetricsJson();
+            return;
+        }
 
-        if (verbose) {
-            System.err.println("Calculating FDR...");
+        for (JunctionContrast contrast: juncDiff.getContrasts()) {
+            AsyncTabWriter writer;
+            if (designFilename == null) {
+                writer = new AsyncTabWriter(out);
+            } else {
+                if (verbose) {
+                    System.err.println("Contrast: " + contrast.name);
+                }
+                writer = new AsyncTabWriter(outputPrefix + contrast.name + ".txt");
+            }
+            writeContrast(juncDiff, contrast, jdStats, writer);
+            metrics.write(writer);
+            writer.close();
         }
-        
-        List<Double> pvalueDonorR1 = new ArrayList<Double>();
-        List<Double> pvalueAcceptorR1 = new ArrayList<Double>();
-
-        for (JunctionKey key: juncDiff.getJunctions().keySet()) {
-            if (juncDiff.getJunctions().get(key).isValidDonor()) {
-                JunctionStats stats = juncDiff.getJunctions().get(key).calcStats(groups, true);
-                double pvalue = juncDiff.calcPvalue(stats.tScore, true);
-                    pvalueDonorR1.add(pvalue);
+        juncDiff.close();
+        writeMetricsJson();
+    }
+
+    private void readDesign(JunctionDiff juncDiff) throws IOException, JunctionDiffException, CommandArgumentException {
+        StringLineReader reader = new StringLineReader(designFilename);
+        for (String line: reader) {
+            String stripped = StringUtils.strip(line);
+            if (stripped.length() == 0 || stripped.charAt(0) == '#') {
+                continue;
             }
-            if (juncDiff.getJunctions().get(key).isValidAcceptor()) {
-                JunctionStats stats = juncDiff.getJunctions().get(key).calcStats(groups, false);
-                double pvalue = juncDiff.calcPvalue(stats.tScore, false);
-                    pvalueAcceptorR1.add(pvalue);
+            String[] cols = stripped.split("\t");
+            if (cols.length < 2) {
+                reader.close();
+                throw new CommandArgumentException("Invalid design line (expected: name<TAB>groups): " + stripped);
+            }
+            try {
+                juncDiff.addContrast(cols[0], parseGroups(cols[1]));
+            } catch (JunctionDiffException e) {
+                reader.close();
+                throw new CommandArgumentException(e.getMessage());
             }
         }
-            
-        double[] pvals = new double[pvalueDonorR1.size()];
-        for (int i=0; i<pvals.length; i++) {
-            pvals[i] = pvalueDonorR1.get(i);
-        }
-        double[] fdr = StatUtils.benjaminiHochberg(pvals);
-        for (int i=0; i<fdr.length; i++) {
-            fdrDonorR1.add(fdr[i]);
+        reader.close();
+        
+        if (juncDiff.getContrasts().size() == 0) {
+            throw new CommandArgumentException("No contrasts found in design file: " + designFilename);
         }
+    }
 
-        pvals = new double[pvalueAcceptorR1.size()];
-        for (int i=0; i<pvals.length; i++) {
-            pvals[i] = pvalueAcceptorR1.get(i);
-        }
-        fdr = StatUtils.benjaminiHochberg(pvals);
-        for (int i=0; i<fdr.length; i++) {
-            fdrAcceptorR1.add(fdr[i]);
+    private void writeContrast(JunctionDiff juncDiff, JunctionContrast contrast, JunctionDiffStats jdStats, AsyncTabWriter writer) throws IOException {
+        Integer[] groups = contrast.getGroups();
+
+        if (verbose) {
+            System.err.println("Calculating FDR...");
         }
 
-        Set<String> uniqueJunctions = new HashSet<String>();
-        for (JunctionKey key: juncDiff.getJunctions().keySet()) {
-            JunctionCounts j = juncDiff.getJunctions().get(key);
-            if (j.isValidDonor() || j.isValidAcceptor()) {
-                uniqueJunctions.add(key.name);
+        /*
+         * P-values are calculated for every donor and acceptor row first (in output order), then
+         * FDRs are calculated separately for the donor and acceptor rows, and then the rows are
+         * written. If the junctions were spilled to disk, each pass loads one contig at a time.
+         */
+        double[] pvalueDonor = new double[jdStats.getDonorRows()];
+        double[] pvalueAcceptor = new double[jdStats.getAcceptorRows()];
+
+        metrics.start("pvalues");
+        int donorIdx = 0;
+        int acceptorIdx = 0;
+        for (int c=0; c<juncDiff.getContigCount(); c++) {
+            juncDiff.loadContig(c);
+            for (JunctionKey key: juncDiff.getJunctions().keySet()) {
+                JunctionCounts j = juncDiff.getJunctions().get(key);
+                if (j.isValidDonor()) {
+                    pvalueDonor[donorIdx++] = juncDiff.calcPvalue(contrast, key, j.calcStats(groups, true), true);
+                }
+                if (j.isValidAcceptor()) {
+                    pvalueAcceptor[acceptorIdx++] = juncDiff.calcPvalue(contrast, key, j.calcStats(groups, false), false);
+                }
             }
         }
+        int rowCount = donorIdx + acceptorIdx;
+        metrics.stop("pvalues");
+        metrics.addRecords("pvalues", rowCount);
 
-        TabWriter writer = new TabWriter(out);
+        metrics.start("fdr");
+        double[] fdrDonor = StatUtils.benjaminiHochberg(pvalueDonor);
+        double[] fdrAcceptor = StatUtils.benjaminiHochberg(pvalueAcceptor);
+        metrics.stop("fdr");
+        metrics.addRecords("fdr", rowCount);
+
+        metrics.start("output");
         writer.write_line("## program: " + NGSUtils.getVersion());
         writer.write_line("## cmd: " + NGSUtils.getArgs());
+        writeSettings(writer, contrast, jdStats);
+        for (String line: jdStats.getSummary()) {
+            writer.write_line(line);
+        }
+        writeColumns(writer, juncDiff);
+        writer.write("juncFDR");
+        writer.write("FDR (B-H)");
+        writer.eol();
+
+        donorIdx = 0;
+        acceptorIdx = 0;
+        for (int c=0; c<juncDiff.getContigCount(); c++) {
+            juncDiff.loadContig(c);
+            for (JunctionKey key: juncDiff.getJunctions().keySet()) {
+                JunctionCounts j = juncDiff.getJunctions().get(key);
+                if (j.isValidDonor()) {
+                    writeRow(writer, key, j, groups, true);
+                    writer.write(pvalueDonor[donorIdx]);
+                    writer.write(fdrDonor[donorIdx]);
+                    writer.eol();
+                    donorIdx++;
+                }
+                if (j.isValidAcceptor()) {
+                    writeRow(writer, key, j, groups, false);
+                    writer.write(pvalueAcceptor[acceptorIdx]);
+                    writer.write(fdrAcceptor[acceptorIdx]);
+                    writer.eol();
+                    acceptorIdx++;
+                }
+            }
+        }
+        metrics.stop("output");
+        metrics.addRecords("output", rowCount);
+        metrics.addBytes("output", writer.getBytesWritten());
+    }
+
+    /**
+     * Writes the shard files for each contrast: the header lines, the rows without p-values 
+     * and FDR (unless adaptive: p-values are per-junction), and the pooled null distributions.
+     */
+    private void writeShard(JunctionDiff juncDiff, JunctionDiffStats jdStats) throws IOException {
+        JunctionDiffShard shard = JunctionDiffShard.create(new File(shardDir));
+
+        metrics.start("shard");
+        int rowCount = 0;
+        for (int i=0; i<juncDiff.getContrasts().size(); i++) {
+            JunctionContrast contrast = juncDiff.getContrasts().get(i);
+            Integer[] groups = contrast.getGroups();
+
+            AsyncTabWriter header = shard.getHeaderWriter(i);
+            writeSettings(header, contrast, jdStats);
+            header.close();
+
+            AsyncTabWriter rows = shard.getRowWriter(i);
+            writeColumns(rows, juncDiff);
+            if (adaptive) {
+                rows.write("juncFDR");
+            }
+            rows.eol();
+
+            for (int c=0; c<juncDiff.getContigCount(); c++) {
+                juncDiff.loadContig(c);
+                for (JunctionKey key: juncDiff.getJunctions().keySet()) {
+                    JunctionCounts j = juncDiff.getJunctions().get(key);
+                    if (j.isValidDonor()) {
+                        JunctionStats stats = writeRow(rows, key, j, groups, true);
+                        if (adaptive) {
+                            rows.write(juncDiff.calcPvalue(contrast, key, stats, true));
+                        }
+                        rows.eol();
+                        rowCount++;
+                    }
+                    if (j.isValidAcceptor()) {
+                        JunctionStats stats = writeRow(rows, key, j, groups, false);
+                        if (adaptive) {
+                            rows.write(juncDiff.calcPvalue(contrast, key, stats, false));
+                        }
+                        rows.eol();
+                        rowCount++;
+                    }
+                }
+            }
+            rows.close();
+
+            if (!adaptive) {
+                shard.writeNulls(i, juncDiff, contrast);
+            }
+        }
+
+        String nullType = JunctionDiffShard.NULL_EXACT;
+        if (adaptive) {
+            nullType = JunctionDiffShard.NULL_ADAPTIVE;
+        } else if (nullSketch != -1) {
+            nullType = JunctionDiffShard.NULL_SKETCH;
+        }
+        shard.writeManifest(juncDiff, jdStats, nullType, designFilename != null);
+        metrics.stop("shard");
+        metrics.addRecords("shard", rowCount);
+    }
+
+    /**
+     * Header lines for the input files, options, and samples (everything but the program, 
+     * command, and junction counts).
+     */
+    private void writeSettings(AsyncTabWriter writer, JunctionContrast contrast, JunctionDiffStats jdStats) throws IOException {
+        Integer[] groups = contrast.getGroups();
         writer.write_line("## files: " + StringUtils.join(",", filenames));
+        if (designFilename != null) {
+            writer.write_line("## design: " + designFilename);
+            writer.write_line("## contrast: " + contrast.name);
+        }
         writer.write_line("## groups: " + StringUtils.join(",", groups));
 
         if (minTotalCount > -1) { 
@@ -140,18 +448,23 @@ public class SpliceDiff extends AbstractOutputCommand {
             writer.write_line("## max-edit-distance: " + maxEditDistance);
         }
 
-        for (JunctionDiffSample sample: jdStats.getSamples()) {
-            writer.write_line("## sample: " + sample.sampleName + ";" + sample.group + ";" + sample.filename);
+        if (adaptive) {
+            writer.write_line("## adaptive-pvalues: exceedances=" + adaptiveExceedances + ";max-perms=" + adaptiveMaxPermutations + ";seed=" + seed);
+        }
+        if (nullSketch != -1) {
+            writer.write_line("## null-sketch: relative-error=" + nullSketch);
         }
 
-        writer.write_line("## total-junctions: "+jdStats.getTotalJunctions());
-        writer.write_line("## filtered-junctions: "+jdStats.getFilteredJunctions());
-        writer.write_line("## valid-donors: "+jdStats.getValidDonors());
-        writer.write_line("## valid-acceptors: "+jdStats.getValidAcceptors());
-        writer.write_line("## final-junctions: "+jdStats.getDonorAcceptorFilteredJunctions());
-        writer.write_line("## unique-junctions: "+uniqueJunctions.size());
-        uniqueJunctions.clear();
+        for (int i=0; i<jdStats.getSamples().size(); i++) {
+            JunctionDiffSample sample = jdStats.getSamples().get(i);
+            writer.write_line("## sample: " + sample.sampleName + ";" + groups[i] + ";" + sample.filename);
+        }
+    }
 
+    /**
+     * Column names up to the t-score
+     */
+    private void writeColumns(AsyncTabWriter writer, JunctionDiff juncDiff) {
         writer.write("junction", "strand");
         writer.write("site_type");
         writer.write("site");
@@ -169,58 +482,32 @@ public class SpliceDiff extends AbstractOutputCommand {
         }
         
         writer.write("control-pct", "exp-pct", "pct_diff", "tscore");
-        writer.write("juncFDR");
-        writer.write("FDR (B-H)");
-        writer.eol();
+    }
 
-        for (JunctionKey key: juncDiff.getJunctions().keySet()) {
-            if (juncDiff.getJunctions().get(key).isValidDonor()) {
-                writer.write(key.name, key.strand.toString());
-                writer.write("donor", key.donor.name);
-                for (int i=0; i<filenames.size(); i++) {
-                    writer.write(juncDiff.getJunctions().get(key).getCount(i));
-                }
-                for (int i=0; i<filenames.size(); i++) {
-                    writer.write(juncDiff.getJunctions().get(key).getDonorTotal(i));
-                }
-                for (int i=0; i<filenames.size(); i++) {
-                    writer.write(juncDiff.getJunctions().get(key).getDonorPct(i));
-                }
-                JunctionStats stats = juncDiff.getJunctions().get(key).calcStats(groups, true);
-                writer.write(stats.controlPct);
-                writer.write(stats.expPct);
-                writer.write(stats.pctDiff);
-                writer.write(stats.tScore);
-                writer.write(juncDiff.calcPvalue(stats.tScore, true));
-                writer.write(fdrDonorR1.remove(0));
-                
-                writer.eol();
-            }
-            if (juncDiff.getJunctions().get(key).isValidAcceptor()) {
-                writer.write(key.name, key.strand.toString());
-                writer.write("acceptor", key.acceptor.name);
-                for (int i=0; i<filenames.size(); i++) {
-                    writer.write(juncDiff.getJunctions().get(key).getCount(i));
-                }
-                for (int i=0; i<filenames.size(); i++) {
-                    writer.write(juncDiff.getJunctions().get(key).getAcceptorTotal(i));
-                }
-                for (int i=0; i<filenames.size(); i++) {
-                    writer.write(juncDiff.getJunctions().get(key).getAcceptorPct(i));
-                }
-                JunctionStats stats = juncDiff.getJunctions().get(key).calcStats(groups, false);
-                writer.write(stats.controlPct);
-                writer.write(stats.expPct);
-                writer.write(stats.pctDiff);
-                writer.write(stats.tScore);
-                writer.write(juncDiff.calcPvalue(stats.tScore, false));
-                writer.write(fdrAcceptorR1.remove(0));
-                
-                writer.eol();
-            }
+    /**
+     * Writes a donor or acceptor row up to the t-score (the line isn't ended)
+     */
+    private JunctionStats writeRow(AsyncTabWriter writer, JunctionKey key, JunctionCounts j, Integer[] groups, boolean isDonor) {
+        JunctionStats stats = j.calcStats(groups, isDonor);
+        writer.write(key.name, key.strand.toString());
+        if (isDonor) {
+            writer.write("donor", key.donor.name);
+        } else {
+            writer.write("acceptor", key.acceptor.name);
         }
-
-        writer.close();
+        for (int k=0; k<filenames.size(); k++) {
+            writer.write(j.getCount(k));
+        }
+        for (int k=0; k<filenames.size(); k++) {
+            writer.write(isDonor ? j.getDonorTotal(k) : j.getAcceptorTotal(k));
+        }
+        for (int k=0; k<filenames.size(); k++) {
+            writer.write(isDonor ? j.getDonorPct(k) : j.getAcceptorPct(k));
+        }
+        writer.write(stats.controlPct);
+        writer.write(stats.expPct);
+        writer.write(stats.pctDiff);
+        writer.write(stats.tScore);
+        return stats;
     }
 }
-
@@ -0,0 +1,212 @@
+package io.compgen.cgsplice.cli;
+
+import io.compgen.cgsplice.junction.JunctionDiffException;
+import io.compgen.cgsplice.junction.JunctionDiffShard;
+import io.compgen.cgsplice.junction.JunctionDiffStats;
+import io.compgen.cgsplice.stats.NullDistribution;
+import io.compgen.cgsplice.support.AbstractMetricsCommand;
+import io.compgen.cgsplice.support.AsyncTabWriter;
+import io.compgen.cmdline.annotation.Command;
+import io.compgen.cmdline.annotation.Exec;
+import io.compgen.cmdline.annotation.Option;
+import io.compgen.cmdline.annotation.UnnamedArg;
+import io.compgen.cmdline.exceptions.CommandArgumentException;
+import io.compgen.common.StringUtils;
+import io.compgen.ngsutils.NGSUtils;
+import io.compgen.ngsutils.support.stats.StatUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+@Command(name="splice-gather", desc="Merge [splice-diff --shard] directories into the final splice-diff table(s)", category="splicing", experimental=true)
+public class SpliceGather extends AbstractMetricsCommand {
+    private List<String> shardDirs;
+    private String outputPrefix = "";
+
+    @UnnamedArg(name = "shard_dir1 shard_dir2...")
+    public void setShardDirs(List<String> shardDirs) {
+        this.shardDirs = shardDirs;
+    }
+
+    @Option(desc="Output filename prefix for --design contrasts", name="prefix", defaultValue="")
+    public void setOutputPrefix(String outputPrefix) {
+        this.outputPrefix = outputPrefix;
+    }
+
+    @Exec
+    public void exec() throws IOException, JunctionDiffException, CommandArgumentException {
+        if (shardDirs == null || shardDirs.size() == 0) {
+            throw new CommandArgumentException("Missing shard directories!");
+        }
+
+        List<JunctionDiffShard> shards = new ArrayList<JunctionDiffShard>();
+        for (String dir: shardDirs) {
+            try {
+                shards.add(JunctionDiffShard.open(new File(dir)));
+            } catch (JunctionDiffException e) {
+                throw new CommandArgumentException(e.getMessage());
+            }
+        }
+        checkShards(shards);
+
+        JunctionDiffShard first = shards.get(0);
+        JunctionDiffStats jdStats = JunctionDiffShard.mergeStats(shards);
+
+        for (int i=0; i<first.getContrastNames().size(); i++) {
+            AsyncTabWriter writer;
+            if (!first.isDesign()) {
+                writer = new AsyncTabWriter(out);
+            } else {
+                if (verbose) {
+                    System.err.println("Contrast: " + first.getContrastNames().get(i));
+                }
+                writer = new AsyncTabWriter(outputPrefix + first.getContrastNames().get(i) + ".txt");
+            }
+            writeContrast(shards, i, jdStats, writer);
+            metrics.write(writer);
+            writer.close();
+        }
+        writeMetricsJson();
+    }
+
+    /**
+     * The shards must be from the same run (files, options, contrasts), and each contig in the
+     * count files must be in exactly one shard.
+     */
+    private void checkShards(List<JunctionDiffShard> shards) throws IOException, CommandArgumentException {
+        JunctionDiffShard first = shards.get(0);
+        Set<String> contigs = new TreeSet<String>();
+
+        for (JunctionDiffShard shard: shards) {
+            if (!shard.getNullType().equals(first.getNullType()) || shard.isDesign() != first.isDesign() || !shard.getContrastNames().equals(first.getContrastNames())) {
+                throw new CommandArgumentException("Shard is from a different run: " + shard.getDir());
+            }
+            for (int i=0; i<first.getContrastNames().size(); i++) {
+                if (!shard.readHeader(i).equals(first.readHeader(i)) || !shard.readColumns(i).equals(first.readColumns(i))) {
+                    throw new CommandArgumentException("Shard is from a different run (input files or options): " + shard.getDir());
+                }
+            }
+            if (!shard.getInputContigs().equals(first.getInputContigs())) {
+                throw new CommandArgumentException("Shard is from a different run (contigs): " + shard.getDir());
+            }
+            for (String contig: shard.getContigs()) {
+                if (!contigs.add(contig)) {
+                    throw new CommandArgumentException("Contig is in more than one shard: " + contig);
+                }
+            }
+        }
+
+        Set<String> missing = new TreeSet<String>(first.getInputContigs());
+        missing.removeAll(contigs);
+        if (missing.size() > 0) {
+            throw new CommandArgumentException("Contigs missing from the shards: " + StringUtils.join(",", missing));
+        }
+    }
+
+    private void writeContrast(List<JunctionDiffShard> shards, int idx, JunctionDiffStats jdStats, AsyncTabWriter writer) throws IOException {
+        boolean adaptive = shards.get(0).getNullType().equals(JunctionDiffShard.NULL_ADAPTIVE);
+
+        NullDistribution donorNull = null;
+        NullDistribution acceptorNull = null;
+        if (!adaptive) {
+            metrics.start("nulls");
+            NullDistribution[] nulls = JunctionDiffShard.mergeNulls(shards, idx);
+            donorNull = nulls[0];
+            acceptorNull = nulls[1];
+            metrics.stop("nulls");
+            metrics.addRecords("nulls", donorNull.size() + acceptorNull.size());
+        }
+
+        /*
+         * Same as splice-diff: p-values for all donor and acceptor rows (in junction order),
+         * then FDR for the donor and acceptor rows separately, and then the rows are written.
+         */
+        double[] pvalueDonor = new double[jdStats.getDonorRows()];
+        double[] pvalueAcceptor = new double[jdStats.getAcceptorRows()];
+
+        metrics.start("pvalues");
+        int donorIdx = 0;
+        int acceptorIdx = 0;
+        Iterator<String> rows = JunctionDiffShard.mergeRows(shards, idx);
+        while (rows.hasNext()) {
+            String line = rows.next();
+            double val = Double.parseDouble(line.substring(line.lastIndexOf('\t') + 1));
+            if (isDonor(line)) {
+                pvalueDonor[donorIdx++] = adaptive ? val : donorNull.pvalue(val);
+            } else {
+                pvalueAcceptor[acceptorIdx++] = adaptive ? val : acceptorNull.pvalue(val);
+            }
+        }
+        int rowCount = donorIdx + acceptorIdx;
+        metrics.stop("pvalues");
+        metrics.addRecords("pvalues", rowCount);
+
+        if (donorIdx != pvalueDonor.length || acceptorIdx != pvalueAcceptor.length) {
+            throw new IOException("The number of rows in the shards doesn't match the shard manifests");
+        }
+
+        metrics.start("fdr");
+        double[] fdrDonor = StatUtils.benjaminiHochberg(pvalueDonor);
+        double[] fdrAcceptor = StatUtils.benjaminiHochberg(pvalueAcceptor);
+        metrics.stop("fdr");
+        metrics.addRecords("fdr", rowCount);
+
+        metrics.start("output");
+        writer.write_line("## program: " + NGSUtils.getVersion());
+        writer.write_line("## cmd: " + NGSUtils.getArgs());
+        for (String line: shards.get(0).readHeader(idx)) {
+            writer.write_line(line);
+        }
+        for (String line: jdStats.getSummary()) {
+            writer.write_line(line);
+        }
+
+        String columns = shards.get(0).readColumns(idx);
+        if (adaptive) {
+            columns = columns.substring(0, columns.lastIndexOf('\t'));
+        }
+        writer.write(columns);
+        writer.write("juncFDR");
+        writer.write("FDR (B-H)");
+        writer.eol();
+
+        donorIdx = 0;
+        acceptorIdx = 0;
+        rows = JunctionDiffShard.mergeRows(shards, idx);
+        while (rows.hasNext()) {
+            String line = rows.next();
+            if (adaptive) {
+                // the p-value is already the last column
+                line = line.substring(0, line.lastIndexOf('\t'));
+            }
+            writer.write(line);
+            if (isDonor(line)) {
+                writer.write(pvalueDonor[donorIdx]);
+                writer.write(fdrDonor[donorIdx]);
+                donorIdx++;
+            } else {
+                writer.write(pvalueAcceptor[acceptorIdx]);
+                writer.write(fdrAcceptor[acceptorIdx]);
+                acceptorIdx++;
+            }
+            writer.eol();
+        }
+        metrics.stop("output");
+        metrics.addRecords("output", rowCount);
+        metrics.addBytes("output", writer.getBytesWritten());
+    }
+
+    /**
+     * @return true if the row is for a donor site (site_type is the third column)
+     */
+    private static boolean isDonor(String line) {
+        int first = line.indexOf('\t');
+        int second = line.indexOf('\t', first + 1);
+        return line.startsWith("donor", second + 1);
+    }
+}
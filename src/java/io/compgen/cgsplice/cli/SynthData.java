@@ -0,0 +1,430 @@
+package io.compgen.cgsplice.cli;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileHeader.SortOrder;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import io.compgen.cgsplice.fasta.FastaWriter;
+import io.compgen.cgsplice.support.AsyncTabWriter;
+import io.compgen.cmdline.annotation.Command;
+import io.compgen.cmdline.annotation.Exec;
+import io.compgen.cmdline.annotation.Option;
+import io.compgen.cmdline.annotation.UnnamedArg;
+import io.compgen.cmdline.exceptions.CommandArgumentException;
+import io.compgen.cmdline.impl.AbstractCommand;
+import io.compgen.common.StringUtils;
+import io.compgen.ngsutils.NGSUtils;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+@Command(name="synth-data", desc="Generate synthetic (seeded) junction-count files, BAM files, and a reference FASTA for benchmarking", category="benchmark", doc="Genes are modeled as chains of exons with "
+        + "exon-skipping junctions, so donors and acceptors have realistic fan-out. Junction counts are Poisson with a per-gene expression level and a per-sample library size. "
+        + "A fraction of genes have a differential effect: one junction's usage is changed in the second group of samples. "
+        + "Outputs: {prefix}s{N}.txt (junction-count), {prefix}design.txt (splice-diff --design), {prefix}truth.txt (differential junctions), and "
+        + "optionally (--bam) {prefix}ref.fa(.fai) and {prefix}s{N}.bam(.bai).")
+public class SynthData extends AbstractCommand {
+    private static final int MIN_OVERHANG = 10;
+    private static final int MAX_BAM_READS_PER_JUNCTION = 1000;
+
+    private String prefix = null;
+    private int samples = 6;
+    private int junctions = 10000;
+    private long seed = 42;
+    private double deFraction = 0.05;
+    private double effect = 4.0;
+    private int contigLength = 200000000;
+
+    private boolean bam = false;
+    private int bamGenes = 200;
+    private int readLength = 76;
+
+    /**
+     * One synthetic gene: a chain of exons, with junctions between consecutive exons and
+     * (some) exon-skipping junctions.
+     */
+    private static class Gene {
+        final boolean plus;
+        final double expression;
+        final List<int[]> junctions = new ArrayList<int[]>(); // {start, end} (intron, 0-based)
+        final List<Double> weights = new ArrayList<Double>();
+        int deJunction = -1;
+        int end = 0;
+
+        Gene(boolean plus, double expression) {
+            this.plus = plus;
+            this.expression = expression;
+        }
+    }
+
+    @UnnamedArg(name = "PREFIX")
+    public void setPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    @Option(desc="Number of samples (first half is group 1, second half is group 2)", name="samples", defaultValue="6")
+    public void setSamples(int samples) {
+        this.samples = samples;
+    }
+
+    @Option(desc="Number of junctions", name="junctions", defaultValue="10000")
+    public void setJunctions(int junctions) {
+        this.junctions = junctions;
+    }
+
+    @Option(desc="Random seed", name="seed", defaultValue="42")
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    @Option(desc="Fraction of genes with a differential splicing effect", name="de-fraction", defaultValue="0.05")
+    public void setDeFraction(double deFraction) {
+        this.deFraction = deFraction;
+    }
+
+    @Option(desc="Fold change in junction usage for differential junctions (group 2 vs group 1)", name="effect", defaultValue="4.0")
+    public void setEffect(double effect) {
+        this.effect = effect;
+    }
+
+    @Option(desc="Maximum contig length (junction files, a longer gene is placed on its own contig)", name="contig-length", defaultValue="200000000")
+    public void setContigLength(int contigLength) {
+        this.contigLength = contigLength;
+    }
+
+    @Option(desc="Also write BAM files and a matching reference FASTA (small, one contig)", name="bam")
+    public void setBam(boolean bam) {
+        this.bam = bam;
+    }
+
+    @Option(desc="Number of genes for the BAM files", name="bam-genes", defaultValue="200")
+    public void setBamGenes(int bamGenes) {
+        this.bamGenes = bamGenes;
+    }
+
+    @Option(desc="Read length for the BAM files", name="read-length", defaultValue="76")
+    public void setReadLength(int readLength) {
+        this.readLength = readLength;
+    }
+
+    @Exec
+    public void exec() throws IOException, CommandArgumentException {
+        if (prefix == null) {
+            throw new CommandArgumentException("Missing output prefix!");
+        }
+        if (samples < 2) {
+            throw new CommandArgumentException("--samples must be at least 2!");
+        }
+        if (junctions < 1) {
+            throw new CommandArgumentException("--junctions must be at least 1!");
+        }
+        if (bamGenes < 1) {
+            throw new CommandArgumentException("--bam-genes must be at least 1!");
+        }
+        if (readLength < MIN_OVERHANG * 2) {
+            throw new CommandArgumentException("--read-length must be at least " + (MIN_OVERHANG * 2) + "!");
+        }
+
+        writeDesign();
+        writeJunctionCounts();
+        if (bam) {
+            writeBams();
+        }
+    }
+
+    private boolean isGroup2(int sample) {
+        return sample >= samples / 2;
+    }
+
+    private void writeDesign() throws IOException {
+        List<String> groups = new ArrayList<String>();
+        for (int i=0; i<samples; i++) {
+            groups.add(isGroup2(i) ? "2" : "1");
+        }
+        FileWriter writer = new FileWriter(prefix + "design.txt");
+        writer.write("synthetic\t" + StringUtils.join(",", groups) + "\n");
+        writer.close();
+    }
+
+    /**
+     * Genes are generated and written one at a time, so memory doesn't depend on the
+     * number of junctions.
+     */
+    private void writeJunctionCounts() throws IOException {
+        Random rand = new Random(seed);
+        double[] libSize = libSizes(rand);
+
+        AsyncTabWriter[] writers = new AsyncTabWriter[samples];
+        for (int i=0; i<samples; i++) {
+            writers[i] = new AsyncTabWriter(prefix + "s" + (i+1) + ".txt");
+            writers[i].write_line("## program: " + NGSUtils.getVersion());
+            writers[i].write_line("## cmd: " + NGSUtils.getArgs());
+            writers[i].write_line("## input: synthetic (seed: " + seed + ", sample: " + (i+1) + ")");
+            writers[i].write_line("## library-orientation: " + "unstranded");
+            writers[i].write_line("## counts: junction-spanning");
+            writers[i].write_line("## counts: edit-distance (NM) ");
+            writers[i].write("junction", "strand", "count", "avg-edit-distance");
+            writers[i].eol();
+        }
+        AsyncTabWriter truth = new AsyncTabWriter(prefix + "truth.txt");
+        truth.write("junction", "strand", "effect");
+        truth.eol();
+
+        int contig = 1;
+        int pos = 0;
+        int total = 0;
+        int[] counts = new int[samples];
+
+        while (total < junctions) {
+            Gene gene = nextGene(rand, pos + 1000 + rand.nextInt(20000), junctions - total);
+            if (gene.end > contigLength && pos > 0) {
+                // next contig (a gene longer than the contig is still placed on an empty contig)
+                contig++;
+                pos = 0;
+                continue;
+            }
+            pos = gene.end;
+            total += gene.junctions.size();
+            String ref = "chr" + contig;
+            String strand = gene.plus ? "+" : "-";
+
+            for (int j=0; j<gene.junctions.size(); j++) {
+                int[] junc = gene.junctions.get(j);
+                String name = ref + ":" + junc[0] + "-" + junc[1];
+                sampleCounts(rand, gene, j, libSize, counts);
+
+                for (int i=0; i<samples; i++) {
+                    if (counts[i] > 0) {
+                        writers[i].write(name, strand);
+                        writers[i].write(counts[i]);
+                        writers[i].write(Math.round(rand.nextDouble() * 150) / 100.0);
+                        writers[i].eol();
+                    }
+                }
+                if (j == gene.deJunction) {
+                    truth.write(name, strand);
+                    truth.write(effect);
+                    truth.eol();
+                }
+            }
+        }
+
+        for (AsyncTabWriter writer: writers) {
+            writer.close();
+        }
+        truth.close();
+    }
+
+    private double[] libSizes(Random rand) {
+        double[] libSize = new double[samples];
+        for (int i=0; i<samples; i++) {
+            libSize[i] = Math.exp(rand.nextGaussian() * 0.2);
+        }
+        return libSize;
+    }
+
+    private Gene nextGene(Random rand, int start, int maxJunctions) {
+        Gene gene = new Gene(rand.nextBoolean(), Math.exp(3 + rand.nextGaussian() * 1.5));
+        int exonCount = 2 + rand.nextInt(6);
+        int[] exonStarts = new int[exonCount];
+        int[] exonEnds = new int[exonCount];
+        int cur = start;
+        for (int i=0; i<exonCount; i++) {
+            exonStarts[i] = cur;
+            exonEnds[i] = cur + 50 + rand.nextInt(250);
+            cur = exonEnds[i] + 100 + rand.nextInt(4900);
+        }
+        gene.end = exonEnds[exonCount - 1];
+
+        for (int i=0; i<exonCount - 1; i++) {
+            for (int skip=1; skip<=3 && i+skip<exonCount; skip++) {
+                // consecutive exons are always joined (and dominant), skipping is less common
+                if (skip == 1 || rand.nextDouble() < (skip == 2 ? 0.3 : 0.1)) {
+                    gene.junctions.add(new int[] { exonEnds[i], exonStarts[i+skip] });
+                    gene.weights.add(-Math.log(1 - rand.nextDouble()) * (skip == 1 ? 4 : 1));
+                }
+            }
+        }
+
+        // junctions are written in genomic order
+        Integer[] order = new Integer[gene.junctions.size()];
+        for (int i=0; i<order.length; i++) {
+            order[i] = i;
+        }
+        final List<int[]> juncs = gene.junctions;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                if (juncs.get(o1)[0] != juncs.get(o2)[0]) {
+                    return Integer.compare(juncs.get(o1)[0], juncs.get(o2)[0]);
+                }
+                return Integer.compare(juncs.get(o1)[1], juncs.get(o2)[1]);
+            }});
+        List<int[]> sortedJuncs = new ArrayList<int[]>();
+        List<Double> sortedWeights = new ArrayList<Double>();
+        for (int i=0; i<order.length && i<maxJunctions; i++) {
+            sortedJuncs.add(gene.junctions.get(order[i]));
+            sortedWeights.add(gene.weights.get(order[i]));
+        }
+        gene.junctions.clear();
+        gene.junctions.addAll(sortedJuncs);
+        gene.weights.clear();
+        gene.weights.addAll(sortedWeights);
+
+        if (gene.junctions.size() > 1 && rand.nextDouble() < deFraction) {
+            gene.deJunction = rand.nextInt(gene.junctions.size());
+        }
+        return gene;
+    }
+
+    private void sampleCounts(Random rand, Gene gene, int junction, double[] libSize, int[] counts) {
+        double weightSum = 0;
+        for (double w: gene.weights) {
+            weightSum += w;
+        }
+        double usage = gene.weights.get(junction) * gene.weights.size() / weightSum;
+
+        for (int i=0; i<samples; i++) {
+            double mean = gene.expression * libSize[i] * usage;
+            if (junction == gene.deJunction && isGroup2(i)) {
+                mean = mean * effect;
+            }
+            counts[i] = poisson(rand, mean);
+        }
+    }
+
+    private static int poisson(Random rand, double mean) {
+        if (mean < 30) {
+            double l = Math.exp(-mean);
+            int k = 0;
+            double p = rand.nextDouble();
+            while (p > l) {
+                k++;
+                p *= rand.nextDouble();
+            }
+            return k;
+        }
+        return (int) Math.max(0, Math.round(mean + Math.sqrt(mean) * rand.nextGaussian()));
+    }
+
+    /**
+     * Writes a small reference (one contig) with canonical GT-AG motifs at each intron, and a
+     * BAM file for each sample with single-end reads spanning the junctions.
+     */
+    private void writeBams() throws IOException {
+        Random rand = new Random(seed + 1);
+        double[] libSize = libSizes(rand);
+        String ref = "chr1";
+
+        List<Gene> genes = new ArrayList<Gene>();
+        int pos = 0;
+        for (int i=0; i<bamGenes; i++) {
+            Gene gene = nextGene(rand, pos + 1000 + rand.nextInt(5000), Integer.MAX_VALUE);
+            genes.add(gene);
+            pos = gene.end;
+        }
+
+        byte[] seq = new byte[pos + 1000];
+        byte[] bases = new byte[] { 'A', 'C', 'G', 'T' };
+        for (int i=0; i<seq.length; i++) {
+            seq[i] = bases[rand.nextInt(4)];
+        }
+        for (Gene gene: genes) {
+            for (int[] junc: gene.junctions) {
+                byte[] motif = (gene.plus ? "GTAG" : "CTAC").getBytes();
+                seq[junc[0]] = motif[0];
+                seq[junc[0]+1] = motif[1];
+                seq[junc[1]-2] = motif[2];
+                seq[junc[1]-1] = motif[3];
+            }
+        }
+        writeReference(ref, seq);
+
+        SAMFileHeader header = new SAMFileHeader();
+        header.setSortOrder(SortOrder.coordinate);
+        header.setSequenceDictionary(new SAMSequenceDictionary(Arrays.asList(new SAMSequenceRecord(ref, seq.length))));
+
+        byte[] quals = new byte[readLength];
+        Arrays.fill(quals, (byte) 30);
+        int[] counts = new int[samples];
+
+        List<List<SAMRecord>> reads = new ArrayList<List<SAMRecord>>();
+        for (int i=0; i<samples; i++) {
+            reads.add(new ArrayList<SAMRecord>());
+        }
+
+        for (Gene gene: genes) {
+            for (int j=0; j<gene.junctions.size(); j++) {
+                int[] junc = gene.junctions.get(j);
+                sampleCounts(rand, gene, j, libSize, counts);
+                for (int i=0; i<samples; i++) {
+                    for (int k=0; k<Math.min(counts[i], MAX_BAM_READS_PER_JUNCTION); k++) {
+                        int left = MIN_OVERHANG + rand.nextInt(readLength - (MIN_OVERHANG * 2) + 1);
+                        int right = readLength - left;
+
+                        byte[] read = new byte[readLength];
+                        System.arraycopy(seq, junc[0] - left, read, 0, left);
+                        System.arraycopy(seq, junc[1], read, left, right);
+                        int nm = 0;
+                        if (rand.nextDouble() < 0.1) {
+                            int mm = rand.nextInt(readLength);
+                            read[mm] = (read[mm] == 'A') ? (byte) 'C' : (byte) 'A';
+                            nm = 1;
+                        }
+
+                        SAMRecord rec = new SAMRecord(header);
+                        rec.setReadName("s" + (i+1) + "." + reads.get(i).size());
+                        rec.setReferenceName(ref);
+                        rec.setAlignmentStart(junc[0] - left + 1);
+                        rec.setCigarString(left + "M" + (junc[1] - junc[0]) + "N" + right + "M");
+                        rec.setReadBases(read);
+                        rec.setBaseQualities(quals);
+                        rec.setMappingQuality(60);
+                        rec.setReadNegativeStrandFlag(!gene.plus);
+                        rec.setAttribute("NM", nm);
+                        reads.get(i).add(rec);
+                    }
+                }
+            }
+        }
+
+        for (int i=0; i<samples; i++) {
+            List<SAMRecord> sampleReads = reads.get(i);
+            Collections.sort(sampleReads, new Comparator<SAMRecord>() {
+                @Override
+                public int compare(SAMRecord o1, SAMRecord o2) {
+                    return Integer.compare(o1.getAlignmentStart(), o2.getAlignmentStart());
+                }});
+
+            SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, true, new File(prefix + "s" + (i+1) + ".bam"));
+            for (SAMRecord rec: sampleReads) {
+                writer.addAlignment(rec);
+            }
+            writer.close();
+            reads.set(i, null);
+        }
+    }
+
+    private void writeReference(String ref, byte[] seq) throws IOException {
+        int wrap = 60;
+        FastaWriter fasta = new FastaWriter(prefix + "ref.fa", wrap);
+        fasta.start(ref, null);
+        fasta.append(seq);
+        fasta.end();
+        fasta.close();
+
+        FileWriter fai = new FileWriter(prefix + "ref.fa.fai");
+        fai.write(ref + "\t" + seq.length + "\t" + (ref.length() + 2) + "\t" + wrap + "\t" + (wrap + 1) + "\n");
+        fai.close();
+    }
+}
@@ -0,0 +1,42 @@
+package io.compgen.cgsplice.fasta;
+
+import java.io.IOException;
+
+/**
+ * Caches a window of one reference sequence, so that many small, mostly increasing, lookups 
+ * (like splice-site dinucleotides for sorted junctions) are served from one bulk read. When a 
+ * lookup falls outside of the current window, a new window is loaded starting at the lookup.
+ * 
+ * @author mbreese
+ *
+ */
+public class CachedReferenceWindow {
+    private final MappedFastaReader fasta;
+    private final String ref;
+    private final byte[] buf;
+    
+    private long winStart = -1;
+    private long winEnd = -1;
+    
+    public CachedReferenceWindow(MappedFastaReader fasta, String ref, int windowSize) {
+        this.fasta = fasta;
+        this.ref = ref;
+        this.buf = new byte[windowSize];
+    }
+
+    /**
+     * Copy ref:start-end (0-based, half-open) into dest.
+     */
+    public void fetch(long start, long end, byte[] dest, int offset) throws IOException {
+        if (end - start > buf.length) {
+            fasta.fetch(ref, start, end, dest, offset);
+            return;
+        }
+        if (start < winStart || end > winEnd) {
+            winStart = start;
+            winEnd = start + buf.length;
+            fasta.fetch(ref, winStart, winEnd, buf, 0);
+        }
+        System.arraycopy(buf, (int) (start - winStart), dest, offset, (int) (end - start));
+    }
+}
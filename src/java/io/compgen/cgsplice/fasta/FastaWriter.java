@@ -0,0 +1,134 @@
+package io.compgen.cgsplice.fasta;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes FASTA records through a byte buffer. Sequences are appended as byte ranges and are 
+ * line-wrapped as they are copied into the buffer, so a record never has to be assembled (or
+ * re-sliced) as a String. The buffer is only flushed to the underlying stream when it is full.
+ * 
+ * @author mbreese
+ *
+ */
+public class FastaWriter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private final OutputStream out;
+    private final int wrap;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int pos = 0;
+    private int col = 0;
+
+    public FastaWriter(OutputStream out, int wrap) {
+        this.out = out;
+        this.wrap = wrap;
+    }
+
+    public FastaWriter(String filename, int wrap) throws IOException {
+        if (filename.endsWith(".gz")) {
+            this.out = new GZIPOutputStream(new FileOutputStream(filename), BUFFER_SIZE);
+        } else {
+            this.out = new BufferedOutputStream(new FileOutputStream(filename));
+        }
+        this.wrap = wrap;
+    }
+
+    /**
+     * Start a new record (writes the header line)
+     */
+    public void start(String name, String comment) throws IOException {
+        writeByte('>');
+        writeString(name);
+        if (comment != null) {
+            writeByte(' ');
+            writeString(comment);
+        }
+        writeByte('\n');
+        col = 0;
+    }
+
+    public void append(byte[] seq) throws IOException {
+        append(seq, 0, seq.length);
+    }
+    
+    public void append(byte[] seq, int off, int len) throws IOException {
+        int end = off + len;
+        while (off < end) {
+            if (wrap > 0 && col == wrap) {
+                writeByte('\n');
+                col = 0;
+            }
+            int n = end - off;
+            if (wrap > 0) {
+                n = Math.min(n, wrap - col);
+            }
+            if (pos + n > buf.length) {
+                flush();
+                n = Math.min(n, buf.length);
+            }
+            System.arraycopy(seq, off, buf, pos, n);
+            pos += n;
+            col += n;
+            off += n;
+        }
+    }
+
+    public void append(char c) throws IOException {
+        if (wrap > 0 && col == wrap) {
+            writeByte('\n');
+            col = 0;
+        }
+        writeByte(c);
+        col++;
+    }
+    
+    /**
+     * Finish the current record. The last line is always terminated, even if the sequence was 
+     * empty.
+     */
+    public void end() throws IOException {
+        writeByte('\n');
+        col = 0;
+    }
+
+    /**
+     * Write already formatted record(s) as-is
+     */
+    public void writeRaw(byte[] records) throws IOException {
+        flush();
+        out.write(records);
+    }
+
+    public void flush() throws IOException {
+        if (pos > 0) {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+    }
+    
+    public void close() throws IOException {
+        flush();
+        if (out == System.out) {
+            out.flush();
+        } else {
+            out.close();
+        }
+    }
+
+    private void writeString(String s) throws IOException {
+        for (int i=0; i<s.length(); i++) {
+            writeByte(s.charAt(i));
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (pos == buf.length) {
+            flush();
+        }
+        buf[pos++] = (byte) b;
+    }
+}
@@ -0,0 +1,54 @@
+package io.compgen.cgsplice.fasta;
+
+import io.compgen.ngsutils.annotation.GenomeSpan;
+
+/**
+ * The upstream and downstream sequences flanking one junction. The junction start/end mark
+ * the intronic part of the junction (0-based), so the flanks are [start-size, start) and 
+ * [end, end+size).
+ * 
+ * @author mbreese
+ *
+ */
+public class JunctionFlank {
+    public final GenomeSpan junction;
+    public final String name;
+    public final int size;
+    
+    private byte[] upstream = null;
+    private byte[] downstream = null;
+    
+    public JunctionFlank(GenomeSpan junction, String name, int size) {
+        this.junction = junction;
+        this.name = name;
+        this.size = size;
+    }
+    
+    public int getUpstreamStart() {
+        return junction.start - size;
+    }
+
+    public int getDownstreamEnd() {
+        return junction.end + size;
+    }
+    
+    public byte[] getUpstream() {
+        return upstream;
+    }
+
+    public byte[] getDownstream() {
+        return downstream;
+    }
+
+    public void setSequences(byte[] upstream, byte[] downstream) {
+        this.upstream = upstream;
+        this.downstream = downstream;
+    }
+
+    /**
+     * @return ref:upstart-start,end-downend
+     */
+    public String getRegionName() {
+        return junction.ref+":"+getUpstreamStart()+"-"+junction.start+","+junction.end+"-"+getDownstreamEnd();
+    }
+}
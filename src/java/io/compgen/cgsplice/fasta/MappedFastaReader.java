@@ -0,0 +1,184 @@
+package io.compgen.cgsplice.fasta;
+
+import io.compgen.common.StringLineReader;
+import io.compgen.common.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Random access to a FASTA file using the samtools .fai index and memory-mapped windows of the
+ * file. Line-wrapped positions are converted to file offsets arithmetically, and bases are 
+ * copied straight from the mapped pages into a byte array, one line-segment at a time.
+ * 
+ * Windows are mapped lazily (per reference, in chunks of whole lines), so only the parts of the
+ * genome that are actually used are paged in. The mapped buffers are only ever read through 
+ * duplicates, so a single reader can be shared between threads.
+ * 
+ * Bases requested outside of a reference are returned as 'N'.
+ *  
+ * @author mbreese
+ *
+ */
+public class MappedFastaReader {
+    /**
+     * Max number of bytes to map in one window (must be < 2GB). 
+     */
+    private static final long MAX_WINDOW_BYTES = 1L << 30;
+
+    private class IndexRecord {
+        final String name;
+        final long length;
+        final long offset;
+        final int lineBases;
+        final int lineWidth;
+        final long basesPerWindow;
+        final MappedByteBuffer[] windows;
+
+        IndexRecord(String name, long length, long offset, int lineBases, int lineWidth) {
+            this.name = name;
+            this.length = length;
+            this.offset = offset;
+            this.lineBases = lineBases;
+            this.lineWidth = lineWidth;
+            this.basesPerWindow = (MAX_WINDOW_BYTES / lineWidth) * lineBases;
+            this.windows = new MappedByteBuffer[(int) ((length + basesPerWindow - 1) / basesPerWindow)];
+        }
+        
+        /**
+         * file offset for a base, relative to the start of the reference
+         */
+        long byteOffset(long pos) {
+            return (pos / lineBases) * lineWidth + (pos % lineBases);
+        }
+        
+        ByteBuffer getWindow(int idx) throws IOException {
+            synchronized (windows) {
+                if (windows[idx] == null) {
+                    long startPos = idx * basesPerWindow;
+                    long endPos = Math.min(length, startPos + basesPerWindow);
+                    long start = offset + byteOffset(startPos);
+                    long size = byteOffset(endPos - 1) + 1 - byteOffset(startPos);
+                    windows[idx] = channel.map(MapMode.READ_ONLY, start, size);
+                }
+                return windows[idx].duplicate();
+            }
+        }
+    }
+    
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Map<String, IndexRecord> indexMap = new LinkedHashMap<String, IndexRecord>();
+    
+    public MappedFastaReader(String filename) throws IOException {
+        if (!new File(filename+".fai").exists()) {
+            throw new IOException("Missing FAI index file: "+filename+".fai");
+        }
+        if (filename.endsWith(".gz")) {
+            throw new IOException("Compressed FASTA files can't be memory-mapped: "+filename);
+        }
+
+        StringLineReader reader = new StringLineReader(filename+".fai");
+        for (String line: reader) {
+            String[] cols = StringUtils.strip(line).split("\t");
+            if (cols.length < 5) {
+                continue;
+            }
+            indexMap.put(cols[0], new IndexRecord(cols[0], Long.parseLong(cols[1]), Long.parseLong(cols[2]), Integer.parseInt(cols[3]), Integer.parseInt(cols[4])));
+        }
+        reader.close();
+        
+        file = new RandomAccessFile(filename, "r");
+        channel = file.getChannel();
+    }
+
+    public static boolean isIndexed(String filename) {
+        return !filename.endsWith(".gz") && new File(filename+".fai").exists();
+    }
+
+    public Set<String> getReferenceNames() {
+        return Collections.unmodifiableSet(indexMap.keySet());
+    }
+    
+    public boolean hasReference(String ref) {
+        return indexMap.containsKey(ref);
+    }
+
+    public long getReferenceLength(String ref) {
+        if (indexMap.containsKey(ref)) {
+            return indexMap.get(ref).length;
+        }
+        return -1; 
+    }
+
+    /**
+     * Copy the bases from ref:start-end (0-based, half-open) into dest, starting at destOffset.
+     */
+    public void fetch(String ref, long start, long end, byte[] dest, int destOffset) throws IOException {
+        IndexRecord rec = indexMap.get(ref);
+        if (rec == null) {
+            throw new IOException("Invalid reference name! \""+ref+"\" not found in FASTA file!");
+        }
+
+        // anything off the ends of the reference is an N
+        if (start < 0) {
+            int pad = (int) Math.min(end - start, -start);
+            Arrays.fill(dest, destOffset, destOffset + pad, (byte) 'N');
+            destOffset += pad;
+            start = 0;
+        }
+        if (end > rec.length) {
+            int pad = (int) Math.min(end - start, end - rec.length);
+            Arrays.fill(dest, destOffset + (int) (end - start) - pad, destOffset + (int) (end - start), (byte) 'N');
+            end = rec.length;
+        }
+
+        long pos = start;
+        while (pos < end) {
+            int winIdx = (int) (pos / rec.basesPerWindow);
+            long winStart = winIdx * rec.basesPerWindow;
+            long winEnd = Math.min(end, winStart + rec.basesPerWindow);
+            long winByteStart = rec.byteOffset(winStart);
+
+            ByteBuffer buf = rec.getWindow(winIdx);
+
+            // copy one line-segment at a time
+            while (pos < winEnd) {
+                int lineOff = (int) (pos % rec.lineBases);
+                int len = (int) Math.min(rec.lineBases - lineOff, winEnd - pos);
+                buf.position((int) (rec.byteOffset(pos) - winByteStart));
+                buf.get(dest, destOffset, len);
+                destOffset += len;
+                pos += len;
+            }
+        }
+    }
+
+    public byte[] fetch(String ref, long start, long end) throws IOException {
+        byte[] out = new byte[(int) (end - start)];
+        fetch(ref, start, end, out, 0);
+        return out;
+    }
+
+    /*
+     * start is zero-based
+     */
+    public String fetchSequence(String ref, int start, int end) throws IOException {
+        return new String(fetch(ref, start, end), "US-ASCII");
+    }
+
+    public void close() throws IOException {
+        channel.close();
+        file.close();
+    }
+}
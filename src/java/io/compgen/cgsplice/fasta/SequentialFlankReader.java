@@ -0,0 +1,123 @@
+package io.compgen.cgsplice.fasta;
+
+import io.compgen.common.StringLineReader;
+import io.compgen.common.StringUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fills in the flanking sequences for a batch of junctions with one sequential pass through a
+ * FASTA file. Requested windows are grouped by reference and sorted by position, so each contig
+ * is read once, no matter how many junctions are on it or what order they were requested in.
+ * 
+ * Works for plain or gzipped FASTA files and doesn't need an index. Bases that fall outside of 
+ * the reference are returned as 'N'.
+ *  
+ * @author mbreese
+ *
+ */
+public class SequentialFlankReader {
+    private class Window {
+        final int start;
+        final int end;
+        final byte[] buf;
+
+        public Window(int start, int end) {
+            this.start = start;
+            this.end = end;
+            this.buf = new byte[end-start];
+            Arrays.fill(buf, (byte) 'N');
+        }
+    }
+
+    private final String filename;
+    
+    public SequentialFlankReader(String filename) {
+        this.filename = filename;
+    }
+    
+    public void fetch(List<JunctionFlank> flanks) throws IOException {
+        Map<String, List<Window>> windows = new HashMap<String, List<Window>>();
+        for (JunctionFlank flank: flanks) {
+            Window up = new Window(flank.getUpstreamStart(), flank.junction.start);
+            Window down = new Window(flank.junction.end, flank.getDownstreamEnd());
+            flank.setSequences(up.buf, down.buf);
+
+            if (!windows.containsKey(flank.junction.ref)) {
+                windows.put(flank.junction.ref, new ArrayList<Window>());
+            }
+            windows.get(flank.junction.ref).add(up);
+            windows.get(flank.junction.ref).add(down);
+        }
+        
+        Comparator<Window> sorter = new Comparator<Window>() {
+            @Override
+            public int compare(Window o1, Window o2) {
+                if (o1.start != o2.start) {
+                    return Integer.compare(o1.start, o2.start);
+                }
+                return Integer.compare(o1.end, o2.end);
+            }};
+
+        for (List<Window> l: windows.values()) {
+            Collections.sort(l, sorter);
+        }
+        
+        StringLineReader reader = new StringLineReader(filename);
+
+        Window[] current = null;
+        int first = 0;
+        int pos = 0;
+        int remaining = windows.size();
+        
+        for (String line: reader) {
+            if (line.length() == 0) {
+                continue;
+            }
+            if (line.charAt(0) == '>') {
+                if (current != null) {
+                    remaining--;
+                    if (remaining == 0) {
+                        break;
+                    }
+                }
+                String name = StringUtils.strip(line.substring(1)).split("\\s", 2)[0];
+                List<Window> l = windows.get(name);
+                current = (l == null) ? null : l.toArray(new Window[l.size()]);
+                first = 0;
+                pos = 0;
+                continue;
+            }
+            if (current == null) {
+                continue;
+            }
+            
+            line = StringUtils.strip(line);
+            int lineEnd = pos + line.length();
+
+            // windows are all the same size, so they are sorted by both start and end
+            while (first < current.length && current[first].end <= pos) {
+                first++;
+            }
+            
+            for (int i=first; i<current.length && current[i].start < lineEnd; i++) {
+                Window w = current[i];
+                int from = Math.max(w.start, pos);
+                int to = Math.min(w.end, lineEnd);
+                for (int j=from; j<to; j++) {
+                    w.buf[j - w.start] = (byte) line.charAt(j - pos);
+                }
+            }
+            
+            pos = lineEnd;
+        }
+        reader.close();
+    }
+}
@@ -0,0 +1,66 @@
+package io.compgen.cgsplice.junction;
+
+import java.util.Arrays;
+
+/**
+ * Union-find over dense int ids (0..n-1). Uses union by size and path halving, so all of the
+ * operations are effectively constant time and nothing is recursive.
+ * 
+ * @author mbreese
+ *
+ */
+public class DisjointSet {
+    private int[] parent;
+    private int[] size;
+    private int count = 0;
+    
+    public DisjointSet() {
+        this(16);
+    }
+
+    public DisjointSet(int initialCapacity) {
+        parent = new int[Math.max(initialCapacity, 1)];
+        size = new int[parent.length];
+    }
+    
+    /**
+     * Add a new singleton set
+     * @return the id of the new element
+     */
+    public int add() {
+        if (count == parent.length) {
+            parent = Arrays.copyOf(parent, parent.length * 2);
+            size = Arrays.copyOf(size, size.length * 2);
+        }
+        parent[count] = count;
+        size[count] = 1;
+        return count++;
+    }
+    
+    public int find(int x) {
+        while (parent[x] != x) {
+            parent[x] = parent[parent[x]];
+            x = parent[x];
+        }
+        return x;
+    }
+
+    public void union(int a, int b) {
+        int ra = find(a);
+        int rb = find(b);
+        if (ra == rb) {
+            return;
+        }
+        if (size[ra] < size[rb]) {
+            int tmp = ra;
+            ra = rb;
+            rb = tmp;
+        }
+        parent[rb] = ra;
+        size[ra] += size[rb];
+    }
+
+    public int size() {
+        return count;
+    }
+}
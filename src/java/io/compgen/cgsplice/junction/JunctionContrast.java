@@ -0,0 +1,72 @@
+package io.compgen.cgsplice.junction;
+
+import io.compgen.cgsplice.stats.NullDistribution;
+
+import java.io.File;
+
+/**
+ * One comparison between two groups of samples. Groups are given for each sample in load 
+ * order: 1=control, 2=experimental, 0=not included in this contrast.
+ * 
+ * @author mbreese
+ *
+ */
+public class JunctionContrast {
+    public final String name;
+    private final Integer[] groups;
+
+    NullDistribution donorNull = null;
+    NullDistribution acceptorNull = null;
+    int permutedGroupCount = 0;
+
+    // the pooled nulls (before this contrast's true scores are removed) and the true scores
+    NullDistribution donorPool = null;
+    NullDistribution acceptorPool = null;
+    double[] donorTrue = null;
+    double[] acceptorTrue = null;
+
+    JunctionContrast(String name, Integer[] groups) {
+        this.name = name;
+        this.groups = groups;
+    }
+
+    /**
+     * Contrast names are used in output filenames ({prefix}{name}.txt), so they can't have 
+     * path separators.
+     */
+    static void checkName(String name) throws JunctionDiffException {
+        if (name.indexOf('/') > -1 || name.indexOf('\\') > -1 || name.indexOf(File.separatorChar) > -1 || name.equals(".") || name.equals("..")) {
+            throw new JunctionDiffException("Invalid contrast name (names can't contain path separators): "+name);
+        }
+    }
+
+    public Integer[] getGroups() {
+        return groups.clone();
+    }
+
+    Integer[] groups() {
+        return groups;
+    }
+
+    public int getPermutedGroupCount() {
+        return permutedGroupCount;
+    }
+
+    /**
+     * Contrasts with the same set of samples and the same group sizes have the same set of
+     * possible groupings (and can share permuted scores).
+     */
+    String getPermutationKey() {
+        StringBuilder sb = new StringBuilder();
+        int group1 = 0;
+        for (int g: groups) {
+            sb.append(g == 0 ? '0' : '1');
+            if (g == 1) {
+                group1++;
+            }
+        }
+        sb.append(':');
+        sb.append(group1);
+        return sb.toString();
+    }
+}
@@ -2,10 +2,10 @@ package io.compgen.cgsplice.junction;
 
 
 public class JunctionCounts {
-    private int[] counts;
+    int[] counts;
     int[] donor_total = null;
     int[] acceptor_total = null;
-    private double aveEditDistanceAcc = 0.0;
+    double aveEditDistanceAcc = 0.0;
     int total = 0;
     
     public JunctionCounts(int sampleCount) {
@@ -28,6 +28,17 @@ public class JunctionCounts {
         }
     }
     
+    /**
+     * Adds the counts from another table (for the same junction)
+     */
+    void merge(JunctionCounts other) {
+        for (int i=0; i<counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+        aveEditDistanceAcc += other.aveEditDistanceAcc;
+    }
+
     public double getAveEditDistance() {
         return aveEditDistanceAcc / total;
     }
@@ -109,7 +120,8 @@ public class JunctionCounts {
                 } else {
                     group2_common_acc += acceptor_total[i];                        
                 }
-            } else {
+            } else if (groups[i] != 0) {
+                // 0 => sample isn't in this comparison
                 throw new RuntimeException("Unsupported experimental design: group #"+groups[i]);
             }
         }
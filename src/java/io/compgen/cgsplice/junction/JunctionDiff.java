@@ -1,19 +1,31 @@
 package io.compgen.cgsplice.junction;
 
+import io.compgen.cgsplice.stats.ExactNullDistribution;
+import io.compgen.cgsplice.stats.NullDistribution;
+import io.compgen.cgsplice.stats.SketchNullDistribution;
+import io.compgen.cgsplice.support.EventRecorder;
+import io.compgen.cgsplice.support.Events;
+import io.compgen.cgsplice.support.Metrics;
 import io.compgen.common.StringLineReader;
 import io.compgen.common.StringUtils;
 import io.compgen.ngsutils.bam.Strand;
-import io.compgen.ngsutils.support.stats.PermutedNullDistribution;
 
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.TreeSet;
 
 public class JunctionDiff {
     
@@ -26,12 +38,112 @@ public class JunctionDiff {
     private SortedMap<JunctionDonorAcceptor, List<JunctionKey>> donors = new TreeMap<JunctionDonorAcceptor, List<JunctionKey>> ();
     private SortedMap<JunctionDonorAcceptor, List<JunctionKey>> acceptors = new TreeMap<JunctionDonorAcceptor, List<JunctionKey>> ();
 
-    private PermutedNullDistribution permutedDonorR1 = null;
-    private PermutedNullDistribution permutedAcceptorR1 = null;
+    private List<JunctionDonorAcceptor> validDonors = null;
+    private List<JunctionDonorAcceptor> validAcceptors = null;
 
-    private int permutedGroupCount = 0;
+    private List<JunctionContrast> contrasts = new ArrayList<JunctionContrast>();
+    private JunctionContrast defaultContrast = null;
+    private boolean adaptive = false;
+    private int adaptiveExceedances = 10;
+    private int adaptiveMaxPermutations = 10000;
+    private long seed = 0;
+    private double nullSketchError = -1;
+    private Metrics metrics = new Metrics();
+
+    // rough size of a junction in the table (key, counts, tree entry), plus 4 bytes/sample
+    private static final long JUNCTION_BYTES = 400;
+    private long maxMemory = -1;
+    private File tmpDir = null;
+    private long spillThreshold = -1;
+    private JunctionSpill spill = null;
+    private List<String> contigs = null;
+    private boolean findContigs = false;
+    private Iterator<Map.Entry<JunctionKey, JunctionCounts>> merged = null;
+    private Map.Entry<JunctionKey, JunctionCounts> pending = null;
+    private int mergedContig = -1;
+    private int donorRows = 0;
+    private int acceptorRows = 0;
+    private Set<String> contigFilter = null;
+    private Set<String> inputContigs = null;
     
     public JunctionDiff() {}
+
+    /**
+     * Phase timings (ingest, filter, site-totals, permutations) are added to these metrics.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Use adaptive (per-junction) p-values instead of the pooled null distributions. 
+     * 
+     * Each junction is tested with random re-labellings of the groups until there have been
+     * {exceedances} permuted t-scores at least as extreme as the true one, or until 
+     * {maxPermutations} have been tried (Besag and Clifford, 1991). Null junctions stop after
+     * a few permutations; only junctions with small p-values use the full budget.
+     *  
+     * @param exceedances
+     * @param maxPermutations
+     */
+    public void setAdaptive(int exceedances, int maxPermutations) {
+        this.adaptive = true;
+        this.adaptiveExceedances = exceedances;
+        this.adaptiveMaxPermutations = maxPermutations;
+    }
+
+    /**
+     * Sets a memory budget (bytes) for the junction tables. If the junctions read from the 
+     * count files take more than half of the budget, they are written to sorted run files
+     * in tmpDir (null: the default temp directory). The runs are then merged and the junctions 
+     * are filtered and tested one contig at a time, so only one contig needs to fit in memory.
+     */
+    public void setMaxMemory(long maxMemory, File tmpDir) {
+        this.maxMemory = maxMemory;
+        this.tmpDir = tmpDir;
+    }
+
+    /**
+     * Keep the pooled null distributions as fixed-size log histograms (SketchNullDistribution)
+     * instead of keeping every permuted score. P-values are never smaller than the exact ones,
+     * and are the exact p-value for a score within about 2 * relativeError of the test score.
+     */
+    public void setNullSketch(double relativeError) {
+        this.nullSketchError = relativeError;
+    }
+
+    /**
+     * Only load the junctions on these contigs (null: all contigs). This is used to split a run
+     * by contig (see: JunctionDiffShard). The contigs found in the count files are tracked 
+     * either way (getInputContigs).
+     */
+    public void setContigs(Set<String> contigs) {
+        this.contigFilter = contigs;
+        this.inputContigs = new TreeSet<String>();
+    }
+
+    /**
+     * @return all of the contigs in the count files (only tracked if setContigs was called)
+     */
+    public Set<String> getInputContigs() {
+        return inputContigs;
+    }
+
+    /**
+     * @return the contigs that were loaded (only tracked if setContigs was called)
+     */
+    public Set<String> getLoadedContigs() {
+        if (inputContigs == null || contigFilter == null) {
+            return inputContigs;
+        }
+        Set<String> loaded = new TreeSet<String>(inputContigs);
+        loaded.retainAll(contigFilter);
+        return loaded;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
     
     public void setMinTotalCount(int minTotalCount) {
         this.minTotalCount  = minTotalCount;
@@ -40,37 +152,256 @@ public class JunctionDiff {
         this.maxEditDistance = maxEditDistance;
     }
     
+    /**
+     * Loads the junction counts and finds the valid donor/acceptor sites for a single 
+     * comparison (contrast), and calculates the permuted null distributions for it.
+     */
     public JunctionDiffStats findJunctions(List<String> filenames, Integer[] groups) throws IOException, JunctionDiffException {
+        JunctionDiffStats stats = load(filenames, groups);
+        defaultContrast = addContrast("", groups);
+        calcPermutations();
+        return stats;
+    }
+
+    /**
+     * Loads the junction counts and finds the valid donor/acceptor sites. This only needs to 
+     * happen once for any number of contrasts (see: addContrast). 
+     */
+    public JunctionDiffStats load(List<String> filenames) throws IOException, JunctionDiffException {
+        return load(filenames, null);
+    }
+
+    private JunctionDiffStats load(List<String> filenames, Integer[] groups) throws IOException, JunctionDiffException {
         sampleCount = filenames.size();
         System.err.println("Number of samples: "+ sampleCount);
         sampleNames = StringUtils.getUniqueNames(filenames);
+        if (maxMemory > 0) {
+            spillThreshold = Math.max(1, maxMemory / 2 / (JUNCTION_BYTES + 4 * sampleCount));
+        }
         
         JunctionDiffStats stats = new JunctionDiffStats();
         
+        metrics.start("ingest");
         for (int i=0; i< sampleCount; i++) {
-            stats.addSample(filenames.get(i), sampleNames.get(i), groups[i]);
-            readFile(filenames.get(i), sampleCount, i);
+            stats.addSample(filenames.get(i), sampleNames.get(i), groups == null ? 0 : groups[i]);
+            metrics.addRecords("ingest", readFile(filenames.get(i), sampleCount, i));
+            metrics.addBytes("ingest", new File(filenames.get(i)).length());
         }
-        
+        metrics.stop("ingest");
+
+        if (spill == null) {
+            processJunctions(stats, metrics);
+            donorRows = stats.getDonorRows();
+            acceptorRows = stats.getAcceptorRows();
+            return stats;
+        }
+
+        // the rest of the junctions are written as the last run, and then the runs are
+        // merged one contig at a time.
+        spill();
+        while (readNextContig()) {
+            JunctionDiffStats contigStats = new JunctionDiffStats();
+            processJunctions(contigStats, metrics);
+            stats.add(contigStats);
+        }
+        junctions = new TreeMap<JunctionKey, JunctionCounts>();
+        donorRows = stats.getDonorRows();
+        acceptorRows = stats.getAcceptorRows();
+        return stats;
+    }
+
+    /**
+     * Filters the junctions and finds the valid donor/acceptor sites and site totals.
+     * 
+     * @param metrics the filter and site-totals phases are added here
+     */
+    private void processJunctions(JunctionDiffStats stats, Metrics metrics) {
+        donors = new TreeMap<JunctionDonorAcceptor, List<JunctionKey>>();
+        acceptors = new TreeMap<JunctionDonorAcceptor, List<JunctionKey>>();
+
         stats.setTotalJunctions(junctions.size());
         
+        metrics.start("filter");
         if (minTotalCount > -1 || maxEditDistance > -1) {
             filterJunctions();
             stats.setFilteredJunctions(junctions.size());
         }
+        metrics.stop("filter");
+        metrics.addRecords("filter", stats.getTotalJunctions());
         
+        metrics.start("site-totals");
         populateDonorAcceptors();
         
-        List<JunctionDonorAcceptor> validDonors = calculateDonors();
+        validDonors = calculateDonors();
         stats.setValidDonors(validDonors.size());
-        List<JunctionDonorAcceptor> validAcceptors = calculateAcceptors();
+        validAcceptors = calculateAcceptors();
         stats.setValidAcceptors(validAcceptors.size());
+        metrics.stop("site-totals");
+        metrics.addRecords("site-totals", donors.size() + acceptors.size());
 
+        metrics.start("filter");
         filterValidDonorAcceptorJunctions(validDonors, validAcceptors);
         stats.setDonorAcceptorFilteredJunctions(junctions.size());
+        metrics.stop("filter");
 
-        calcPermutations(groups);
-        return stats;
+        int donorRows = 0;
+        int acceptorRows = 0;
+        Set<String> names = new HashSet<String>();
+        for (JunctionCounts j: junctions.values()) {
+            if (j.isValidDonor()) {
+                donorRows++;
+            }
+            if (j.isValidAcceptor()) {
+                acceptorRows++;
+            }
+        }
+        for (JunctionKey k: junctions.keySet()) {
+            names.add(k.name);
+        }
+        stats.setRows(donorRows, acceptorRows, names.size());
+    }
+
+    /**
+     * Writes the current junction table to a sorted run file.
+     */
+    private void spill() throws IOException {
+        metrics.start("spill");
+        if (spill == null) {
+            spill = new JunctionSpill(tmpDir, sampleCount, maxMemory);
+        }
+        long before = spill.getBytesWritten();
+        spill.write(junctions);
+        metrics.addRecords("spill", junctions.size());
+        metrics.addBytes("spill", spill.getBytesWritten() - before);
+        junctions = new TreeMap<JunctionKey, JunctionCounts>();
+        metrics.stop("spill");
+    }
+
+    /**
+     * Reads all of the junctions for the next contig from the merged runs (replacing the 
+     * current junction table). The first call (or a call after the last contig) starts a new merge.
+     * 
+     * @return false if there are no more contigs
+     */
+    private boolean readNextContig() throws IOException {
+        if (merged == null) {
+            merged = spill.merge();
+            pending = merged.hasNext() ? merged.next() : null;
+            mergedContig = -1;
+            if (contigs == null) {
+                contigs = new ArrayList<String>();
+                findContigs = true;
+            }
+        }
+        if (pending == null) {
+            merged = null;
+            findContigs = false;
+            return false;
+        }
+
+        String ref = getContig(pending.getKey());
+        junctions = new TreeMap<JunctionKey, JunctionCounts>();
+        while (pending != null && getContig(pending.getKey()).equals(ref)) {
+            junctions.put(pending.getKey(), pending.getValue());
+            pending = merged.hasNext() ? merged.next() : null;
+        }
+        mergedContig++;
+        if (findContigs) {
+            contigs.add(ref);
+        }
+        return true;
+    }
+
+    private static String getContig(JunctionKey key) {
+        return getContig(key.name);
+    }
+
+    /**
+     * Junction names are ref:start-end, and ref can have ':' in it (ex: HLA-A*01:01:01:01)
+     */
+    private static String getContig(String junction) {
+        return junction.substring(0, junction.lastIndexOf(':'));
+    }
+
+    /**
+     * Junction tables that are larger than the memory budget are spilled to disk and processed
+     * one contig at a time (see: loadContig). If the tables fit in memory, there is one contig
+     * (all junctions).
+     */
+    public int getContigCount() {
+        if (spill == null) {
+            return 1;
+        }
+        return contigs.size();
+    }
+
+    /**
+     * Loads the (filtered) junctions for a contig, so that getJunctions() and calcPvalue() use
+     * this contig. Contigs should be loaded in order -- loading an earlier contig restarts the 
+     * merge. This does nothing if the junctions are all in memory.
+     */
+    public void loadContig(int idx) throws IOException {
+        if (spill == null) {
+            return;
+        }
+        if (merged != null && idx <= mergedContig) {
+            merged = null;
+        }
+        if (merged == null) {
+            mergedContig = -1;
+        }
+        while (mergedContig < idx) {
+            if (!readNextContig()) {
+                throw new IOException("Missing contig: " + idx);
+            }
+        }
+        // already counted in load() -- the metrics for re-processing a contig are discarded
+        processJunctions(new JunctionDiffStats(), new Metrics());
+    }
+
+    /**
+     * Removes any spilled run files
+     */
+    public void close() {
+        if (spill != null) {
+            spill.close();
+        }
+    }
+
+    /**
+     * Adds a comparison between two groups of samples. Groups are given for each sample
+     * (1=control, 2=experimental, 0=not included).
+     */
+    public JunctionContrast addContrast(String name, Integer[] groups) throws JunctionDiffException {
+        JunctionContrast.checkName(name);
+        if (groups == null || groups.length != sampleCount) {
+            throw new JunctionDiffException("Contrast "+name+": the number of groups doesn't match the number of samples ("+sampleCount+")");
+        }
+        boolean group1 = false;
+        boolean group2 = false;
+        for (Integer g: groups) {
+            if (g == null || g < 0 || g > 2) {
+                throw new JunctionDiffException("Contrast "+name+": unsupported experimental design: group #"+g);
+            }
+            group1 = group1 || g == 1;
+            group2 = group2 || g == 2;
+        }
+        if (!group1 || !group2) {
+            throw new JunctionDiffException("Contrast "+name+": both groups (1 and 2) need at least one sample");
+        }
+        for (JunctionContrast contrast: contrasts) {
+            if (contrast.name.equals(name)) {
+                throw new JunctionDiffException("Duplicate contrast name: "+name);
+            }
+        }
+        
+        JunctionContrast contrast = new JunctionContrast(name, Arrays.copyOf(groups, groups.length));
+        contrasts.add(contrast);
+        return contrast;
+    }
+
+    public List<JunctionContrast> getContrasts() {
+        return Collections.unmodifiableList(contrasts);
     }
 
     private void filterValidDonorAcceptorJunctions(List<JunctionDonorAcceptor> validDonors, List<JunctionDonorAcceptor> validAcceptors) {
@@ -167,14 +498,19 @@ public class JunctionDiff {
         return valid;
     }
 
-    private void readFile(String filename, int sampleCount, int sampleNum) throws IOException, JunctionDiffException {
+    /**
+     * @return the number of junction lines read
+     */
+    int readFile(String filename, int sampleCount, int sampleNum) throws IOException, JunctionDiffException {
         String[] header = null;
+        int lines = 0;
         
         int juncIdx = -1;
         int strandIdx = -1;
         int countIdx = -1;
         int editIdx = -1;
         
+        EventRecorder.Span span = Events.fileParse(filename);
         StringLineReader reader = new StringLineReader(filename);
         
         for (String line: reader) {
@@ -206,9 +542,21 @@ public class JunctionDiff {
                     // this is a junction line... find the key, if it is new, add a count object, 
                     // and add the counts for this sample.
 
+                    if (inputContigs != null) {
+                        String ref = getContig(cols[juncIdx]);
+                        inputContigs.add(ref);
+                        if (contigFilter != null && !contigFilter.contains(ref)) {
+                            continue;
+                        }
+                    }
+
                     JunctionKey k = new JunctionKey(cols[juncIdx], Strand.parse(cols[strandIdx]));
+                    lines++;
 
                     if (!junctions.containsKey(k)) {
+                        if (spillThreshold > 0 && junctions.size() >= spillThreshold) {
+                            spill();
+                        }
                         junctions.put(k, new JunctionCounts(sampleCount));
                     }
 
@@ -221,6 +569,8 @@ public class JunctionDiff {
             }
         }       
         reader.close();
+        span.end(lines, new File(filename).length());
+        return lines;
     }
 
     public List<String> getSampleNames() {
@@ -232,91 +582,307 @@ public class JunctionDiff {
     }
 
     /**
-     * Calculates t-score distributions for all junctions by readnum and donor/acceptor
-     * These permuted t-scores will then be used to calculate FDRs for the true t-scores
-     * @param groups
+     * Calculates the permuted null (t-score) distributions for donors and acceptors for all 
+     * contrasts. These permuted t-scores will then be used to calculate p-values for the true 
+     * t-scores. 
+     * 
+     * Contrasts with the same samples and group sizes have the same possible groupings, so 
+     * the scores for all groupings are only calculated once. Each contrast's null is the 
+     * shared distribution without the scores for its own (true) grouping.
+     * 
+     * (Not used in adaptive mode)
      */
-    private void calcPermutations(Integer[] trueGroups) {
-        List<Integer[]> permutedGroups = permuteGroups(trueGroups);
-        this.permutedGroupCount = permutedGroups.size();
-        
-        this.permutedDonorR1 = calcPermutations(permutedGroups, true);
-        this.permutedAcceptorR1 = calcPermutations(permutedGroups, false);
-
-        List<Integer[]> trueGroupList = new ArrayList<Integer[]>();
-        trueGroupList.add(trueGroups);
-
-//        this.trueDonorR1 = calcPermutations(trueGroupList, true, true);
-//        this.trueAcceptorR1 = calcPermutations(trueGroupList, true, false);
-//
-//        if (this.isSplitReads()) {
-//            this.trueDonorR2 = calcPermutations(trueGroupList, false, true);
-//            this.trueAcceptorR2 = calcPermutations(trueGroupList, false, false);
-//        }
-        
+    public void calcPermutations() throws IOException {
+        if (adaptive) {
+            return;
+        }
+
+        metrics.start("permutations");
+        Map<String, List<JunctionContrast>> shared = new HashMap<String, List<JunctionContrast>>();
+        List<String> order = new ArrayList<String>();
+        for (JunctionContrast contrast: contrasts) {
+            if (contrast.donorNull == null) {
+                String key = contrast.getPermutationKey();
+                if (!shared.containsKey(key)) {
+                    shared.put(key, new ArrayList<JunctionContrast>());
+                    order.add(key);
+                }
+                shared.get(key).add(contrast);
+            }
+        }
+
+        List<List<Integer[]>> groupings = new ArrayList<List<Integer[]>>();
+        NullDistribution[] donorNulls = new NullDistribution[order.size()];
+        NullDistribution[] acceptorNulls = new NullDistribution[order.size()];
+        for (int k=0; k<order.size(); k++) {
+            groupings.add(allGroupings(shared.get(order.get(k)).get(0).groups()));
+            donorNulls[k] = newNullDistribution(donorRows * groupings.get(k).size());
+            acceptorNulls[k] = newNullDistribution(acceptorRows * groupings.get(k).size());
+        }
+
+        // the true scores for each contrast (removed from the shared null)
+        Map<JunctionContrast, double[]> trueDonor = new HashMap<JunctionContrast, double[]>();
+        Map<JunctionContrast, double[]> trueAcceptor = new HashMap<JunctionContrast, double[]>();
+        int donorOffset = 0;
+        int acceptorOffset = 0;
+
+        // if the junctions were spilled to disk, the scores are added one contig at a time
+        for (int c=0; c<getContigCount(); c++) {
+            loadContig(c);
+            int contigDonorRows = 0;
+            int contigAcceptorRows = 0;
+            for (int k=0; k<order.size(); k++) {
+                calcScores(groupings.get(k), true, donorNulls[k]);
+                calcScores(groupings.get(k), false, acceptorNulls[k]);
+                
+                for (JunctionContrast contrast: shared.get(order.get(k))) {
+                    if (!trueDonor.containsKey(contrast)) {
+                        trueDonor.put(contrast, new double[donorRows]);
+                        trueAcceptor.put(contrast, new double[acceptorRows]);
+                    }
+                    List<Integer[]> trueGrouping = new ArrayList<Integer[]>();
+                    trueGrouping.add(contrast.groups());
+                    double[] scores = calcScores(trueGrouping, true, null);
+                    System.arraycopy(scores, 0, trueDonor.get(contrast), donorOffset, scores.length);
+                    contigDonorRows = scores.length;
+                    scores = calcScores(trueGrouping, false, null);
+                    System.arraycopy(scores, 0, trueAcceptor.get(contrast), acceptorOffset, scores.length);
+                    contigAcceptorRows = scores.length;
+                }
+            }
+            donorOffset += contigDonorRows;
+            acceptorOffset += contigAcceptorRows;
+        }
+
+        for (int k=0; k<order.size(); k++) {
+            donorNulls[k].set();
+            acceptorNulls[k].set();
+            for (JunctionContrast contrast: shared.get(order.get(k))) {
+                contrast.donorPool = donorNulls[k];
+                contrast.acceptorPool = acceptorNulls[k];
+                contrast.donorTrue = trueDonor.get(contrast);
+                contrast.acceptorTrue = trueAcceptor.get(contrast);
+                contrast.donorNull = donorNulls[k].without(contrast.donorTrue);
+                contrast.acceptorNull = acceptorNulls[k].without(contrast.acceptorTrue);
+                contrast.permutedGroupCount = groupings.get(k).size() - 1;
+            }
+            // records: permuted t-scores
+            metrics.addRecords("permutations", donorNulls[k].size() + acceptorNulls[k].size());
+        }
+        metrics.stop("permutations");
     }
-    
-    
+
+    /**
+     * Writes the pooled null distributions and the true scores for a contrast, so that they
+     * can be merged with the nulls from other contigs (see: JunctionDiffShard).
+     */
+    public void writeNulls(JunctionContrast contrast, DataOutputStream out) throws IOException {
+        if (contrast.donorPool == null) {
+            throw new IllegalStateException("Pooled null distributions haven't been calculated");
+        }
+        contrast.donorPool.write(out);
+        contrast.acceptorPool.write(out);
+        writeScores(contrast.donorTrue, out);
+        writeScores(contrast.acceptorTrue, out);
+    }
+
+    private static void writeScores(double[] scores, DataOutputStream out) throws IOException {
+        out.writeInt(scores.length);
+        for (double score: scores) {
+            out.writeDouble(score);
+        }
+    }
+
+    private NullDistribution newNullDistribution(int initialCapacity) {
+        if (nullSketchError > 0) {
+            return new SketchNullDistribution(nullSketchError);
+        }
+        return new ExactNullDistribution(initialCapacity);
+    }
+
+    /**
+     * Calculates the p-value for a junction's donor or acceptor stats, using either the pooled 
+     * null distribution or (in adaptive mode) permutations for this junction only.
+     */
+    public double calcPvalue(JunctionContrast contrast, JunctionKey key, JunctionStats stats, boolean isDonor) {
+        if (adaptive) {
+            return calcAdaptivePvalue(contrast, key, stats.tScore, isDonor);
+        }
+        return calcPvalue(contrast, stats.tScore, isDonor);
+    }
+
+    public double calcPvalue(JunctionKey key, JunctionStats stats, boolean isDonor) {
+        return calcPvalue(defaultContrast, key, stats, isDonor);
+    }
+
     public double calcPvalue(double testScore, boolean isDonor) {
-        PermutedNullDistribution nullDist;
+        return calcPvalue(defaultContrast, testScore, isDonor);
+    }
+
+    public double calcPvalue(JunctionContrast contrast, double testScore, boolean isDonor) {
+        if (adaptive) {
+            throw new IllegalStateException("Pooled null distributions aren't calculated in adaptive mode");
+        }
 
         if (isDonor) {
-            nullDist = permutedDonorR1;
-        } else {
-            nullDist = permutedAcceptorR1;
+            return contrast.donorNull.pvalue(testScore);
         }
-        
-        return nullDist.pvalue(testScore);
+        return contrast.acceptorNull.pvalue(testScore);
     }
-    
-    private PermutedNullDistribution calcPermutations(List<Integer[]> permutedGroups, boolean isDonor) {
-        PermutedNullDistribution nullDist = new PermutedNullDistribution();
-        nullDist.setName((isDonor ? "Donor": "Acceptor"));
+
+    /**
+     * Sequential Monte-Carlo p-value (two-tailed). If the junction reaches h exceedances after
+     * l permutations, p = h / l; otherwise p = (g + 1) / (n + 1) after all n permutations, 
+     * where g is the number of exceedances. Only samples in the contrast are shuffled.
+     * 
+     * The random generator is seeded from the junction (and site type), so p-values don't 
+     * depend on the order (or set) of junctions tested.
+     */
+    private double calcAdaptivePvalue(JunctionContrast contrast, JunctionKey key, double testScore, boolean isDonor) {
+        if (Double.isNaN(testScore)) {
+            return 1.0;
+        }
+        
+        // Random only uses the low 48 bits of the seed, so the junction bits are mixed first
+        long junctionBits = (((long) key.name.hashCode()) << 32) | (key.strand.ordinal() << 1) | (isDonor ? 1 : 0);
+        long junctionSeed = fmix64(seed ^ fmix64(junctionBits));
+        Random rand = new Random(junctionSeed);
+        JunctionCounts counts = junctions.get(key);
+
+        double test = Math.abs(testScore);
+        Integer[] permuted = contrast.getGroups();
+
+        int included = 0;
+        int[] idx = new int[permuted.length];
+        for (int i=0; i<permuted.length; i++) {
+            if (permuted[i] != 0) {
+                idx[included++] = i;
+            }
+        }
+
+        int exceed = 0;
         
-        for (JunctionKey junc: junctions.keySet()) {
-            if ((isDonor && junctions.get(junc).isValidDonor()) || (!isDonor && junctions.get(junc).isValidAcceptor())) {
-                for (Integer[] group: permutedGroups) {
-                    JunctionStats stats = junctions.get(junc).calcStats(group, isDonor);
-                    nullDist.add(stats.tScore);
+        for (int perm=1; perm<=adaptiveMaxPermutations; perm++) {
+            // Fisher-Yates shuffle (group sizes stay the same)
+            for (int i=included-1; i>0; i--) {
+                int j = rand.nextInt(i+1);
+                Integer tmp = permuted[idx[i]];
+                permuted[idx[i]] = permuted[idx[j]];
+                permuted[idx[j]] = tmp;
+            }
+
+            if (Math.abs(counts.calcStats(permuted, isDonor).tScore) >= test) {
+                exceed++;
+                if (exceed >= adaptiveExceedances) {
+                    return ((double) exceed) / perm;
                 }
             }
         }
-        return nullDist;        
+        
+        return ((double) exceed + 1) / (adaptiveMaxPermutations + 1);
+    }
+
+    /**
+     * murmur3 64-bit finalizer
+     */
+    private static long fmix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Calculates t-scores for all valid donor (or acceptor) junctions for each grouping. If
+     * dist is given, the scores are added to it one block at a time (and aren't returned), so
+     * the full junctions x groupings array is never kept.
+     * 
+     * @return the t-scores (or null if they were added to dist)
+     */
+    private double[] calcScores(List<Integer[]> groupings, boolean isDonor, NullDistribution dist) {
+        // Junctions are added site by site, so siblings share the site totals in the kernel.
+        List<int[]> counts = new ArrayList<int[]>();
+        List<int[]> totals = new ArrayList<int[]>();
+        for (JunctionDonorAcceptor site: (isDonor ? validDonors : validAcceptors)) {
+            for (JunctionKey k: (isDonor ? donors.get(site) : acceptors.get(site))) {
+                JunctionCounts j = junctions.get(k);
+                counts.add(j.counts);
+                totals.add(isDonor ? j.donor_total : j.acceptor_total);
+            }
+        }
+
+        PermutationKernel kernel = new PermutationKernel(groupings, sampleCount);
+        int perms = kernel.getPermutationCount();
+        double[] scores = dist == null ? new double[counts.size() * perms] : null;
+        double[] block = new double[PermutationKernel.BLOCK_SIZE * perms];
+
+        for (int from=0; from<counts.size(); from+=PermutationKernel.BLOCK_SIZE) {
+            int to = Math.min(counts.size(), from + PermutationKernel.BLOCK_SIZE);
+            EventRecorder.Span span = Events.permutationBlock(to - from, perms);
+            kernel.scoreBlock(counts, totals, from, to, block);
+            span.end((long) (to - from) * perms, 0);
+            if (dist != null) {
+                dist.add(block, 0, (to-from) * perms);
+            } else {
+                System.arraycopy(block, 0, scores, from * perms, (to-from) * perms);
+            }
+        }
+        return scores;
     }
 
+    /**
+     * @return all possible groupings for the samples in trueGroups, except for the true grouping.
+     */
     public static List<Integer[]> permuteGroups(Integer[] trueGroups) {
+        List<Integer[]> permuted = new ArrayList<Integer[]>();
+        for (Integer[] permutedGroup: allGroupings(trueGroups)) {
+            // Don't include the "true" grouping in list.
+            if (!Arrays.equals(permutedGroup, trueGroups)) {
+                permuted.add(permutedGroup);
+            }
+        }
+        return permuted;
+    }
+
+    /**
+     * @return all possible groupings of the samples in trueGroups (with the same group sizes). 
+     *         Samples that aren't in either group (0) stay out.
+     */
+    public static List<Integer[]> allGroupings(Integer[] trueGroups) {
         int group1Count = 0;
-        for (int g:trueGroups) {
-            if (g == 1) {
+        int included = 0;
+        int[] idx = new int[trueGroups.length];
+        for (int i=0; i<trueGroups.length; i++) {
+            if (trueGroups[i] == 1) {
                 group1Count += 1;
             }
+            if (trueGroups[i] != 0) {
+                idx[included++] = i;
+            }
         }
         
-        Integer[] possible = new Integer[trueGroups.length];
-        for (int i=0; i<trueGroups.length; i++) {
-            possible[i] = i;
-        }
         List<Integer[]> permutedGroup1 = new ArrayList<Integer[]>();
-        calcRecursePermutations(permutedGroup1, new Integer[0], 0, trueGroups.length, group1Count);
+        calcRecursePermutations(permutedGroup1, new Integer[0], 0, included, group1Count);
         
-        List<Integer[]> permuted = new ArrayList<Integer[]>();
+        List<Integer[]> groupings = new ArrayList<Integer[]>();
         
         for (Integer[] group1: permutedGroup1) {
             Integer[] permutedGroup = new Integer[trueGroups.length];
             for (int i=0; i< trueGroups.length; i++) {
-                permutedGroup[i] = 2;
+                permutedGroup[i] = 0;
             }
-            for (int i=0; i< group1.length; i++) {
-                permutedGroup[group1[i]] = 1;
+            for (int i=0; i< included; i++) {
+                permutedGroup[idx[i]] = 2;
             }
-            // Don't include the "true" grouping in list.
-            if (!Arrays.equals(permutedGroup, trueGroups)) {
-                permuted.add(permutedGroup);
+            for (int i=0; i< group1.length; i++) {
+                permutedGroup[idx[group1[i]]] = 1;
             }
+            groupings.add(permutedGroup);
         }
         
-        return permuted;
-        
+        return groupings;
     }
 
     private static void calcRecursePermutations(List<Integer[]> valid, Integer[] curr, int start, int samples, int maxLength) {
@@ -333,6 +899,6 @@ public class JunctionDiff {
     }
 
     public Integer getPermutedGroupCount() {
-        return this.permutedGroupCount;
+        return defaultContrast.getPermutedGroupCount();
     }
 }
@@ -0,0 +1,392 @@
+package io.compgen.cgsplice.junction;
+
+import io.compgen.cgsplice.stats.ExactNullDistribution;
+import io.compgen.cgsplice.stats.NullDistribution;
+import io.compgen.cgsplice.stats.SketchNullDistribution;
+import io.compgen.cgsplice.support.AsyncTabWriter;
+import io.compgen.common.StringLineReader;
+import io.compgen.common.StringUtils;
+import io.compgen.ngsutils.bam.Strand;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * One part of a splice-diff run that was split by contig. Donor/acceptor sites never cross
+ * contigs, so each shard can filter junctions and calculate t-scores on its own. Only the
+ * p-values (pooled null) and FDR need all of the contigs, so each shard saves its rows
+ * without them, along with its part of the null distributions.
+ *
+ * A shard directory has:
+ *     manifest.txt            contigs, null type, contrasts, and junction counts (written last)
+ *     contrast-N.header.txt   header lines for contrast N (files, groups, options, samples)
+ *     contrast-N.rows.txt.gz  output rows for contrast N (in junction order) up to the t-score
+ *                             (adaptive mode: plus the p-value)
+ *     contrast-N.null         pooled null distributions and true scores (not in adaptive mode)
+ *
+ * @author mbreese
+ *
+ */
+public class JunctionDiffShard {
+    public static final String NULL_EXACT = "exact";
+    public static final String NULL_SKETCH = "sketch";
+    public static final String NULL_ADAPTIVE = "adaptive";
+
+    private static final String MANIFEST = "manifest.txt";
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final File dir;
+    private Set<String> contigs = new TreeSet<String>();
+    private Set<String> inputContigs = new TreeSet<String>();
+    private String nullType = null;
+    private boolean design = false;
+    private List<String> contrastNames = new ArrayList<String>();
+    private JunctionDiffStats stats = null;
+
+    private JunctionDiffShard(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Creates a new (empty) shard directory. Any existing manifest is removed, so a partial
+     * shard won't be used.
+     */
+    public static JunctionDiffShard create(File dir) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Unable to create shard directory: " + dir);
+        }
+        File manifest = new File(dir, MANIFEST);
+        if (manifest.exists() && !manifest.delete()) {
+            throw new IOException("Unable to remove old shard manifest: " + manifest);
+        }
+        return new JunctionDiffShard(dir);
+    }
+
+    /**
+     * Reads an existing (finished) shard directory
+     */
+    public static JunctionDiffShard open(File dir) throws IOException, JunctionDiffException {
+        File manifest = new File(dir, MANIFEST);
+        if (!manifest.exists()) {
+            throw new JunctionDiffException("Missing shard manifest (unfinished shard?): " + manifest);
+        }
+
+        JunctionDiffShard shard = new JunctionDiffShard(dir);
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        StringLineReader reader = new StringLineReader(manifest.getPath());
+        for (String line: reader) {
+            if (!line.startsWith("## ") || line.indexOf(": ") == -1) {
+                continue;
+            }
+            String key = line.substring(3, line.indexOf(": "));
+            String val = line.substring(line.indexOf(": ") + 2);
+            switch (key) {
+            case "contigs":
+                shard.contigs = splitContigs(val);
+                break;
+            case "input-contigs":
+                shard.inputContigs = splitContigs(val);
+                break;
+            case "null":
+                shard.nullType = val;
+                break;
+            case "design":
+                shard.design = Boolean.parseBoolean(val);
+                break;
+            case "contrast":
+                JunctionContrast.checkName(val);
+                shard.contrastNames.add(val);
+                break;
+            default:
+                // junction counts
+                counts.put(key, Integer.parseInt(val));
+                break;
+            }
+        }
+        reader.close();
+
+        for (String key: new String[] {"total-junctions", "filtered-junctions", "valid-donors", "valid-acceptors", "final-junctions", "unique-junctions", "donor-rows", "acceptor-rows"}) {
+            if (!counts.containsKey(key)) {
+                throw new JunctionDiffException("Invalid shard manifest (missing " + key + "): " + manifest);
+            }
+        }
+        if (shard.nullType == null) {
+            throw new JunctionDiffException("Invalid shard manifest (missing null): " + manifest);
+        }
+
+        shard.stats = new JunctionDiffStats();
+        shard.stats.setTotalJunctions(counts.get("total-junctions"));
+        shard.stats.setFilteredJunctions(counts.get("filtered-junctions"));
+        shard.stats.setValidDonors(counts.get("valid-donors"));
+        shard.stats.setValidAcceptors(counts.get("valid-acceptors"));
+        shard.stats.setDonorAcceptorFilteredJunctions(counts.get("final-junctions"));
+        shard.stats.setRows(counts.get("donor-rows"), counts.get("acceptor-rows"), counts.get("unique-junctions"));
+        return shard;
+    }
+
+    private static Set<String> splitContigs(String val) {
+        Set<String> contigs = new TreeSet<String>();
+        for (String contig: val.split(",")) {
+            if (!contig.equals("")) {
+                contigs.add(contig);
+            }
+        }
+        return contigs;
+    }
+
+    /**
+     * Writes the manifest. This should be called after all of the contrasts are written.
+     */
+    public void writeManifest(JunctionDiff juncDiff, JunctionDiffStats stats, String nullType, boolean design) throws IOException {
+        FileWriter fw = new FileWriter(new File(dir, MANIFEST));
+        fw.write("## contigs: " + StringUtils.join(",", juncDiff.getLoadedContigs()) + "\n");
+        fw.write("## input-contigs: " + StringUtils.join(",", juncDiff.getInputContigs()) + "\n");
+        fw.write("## null: " + nullType + "\n");
+        fw.write("## design: " + design + "\n");
+        for (JunctionContrast contrast: juncDiff.getContrasts()) {
+            fw.write("## contrast: " + contrast.name + "\n");
+        }
+        for (String line: stats.getSummary()) {
+            fw.write(line + "\n");
+        }
+        fw.write("## donor-rows: " + stats.getDonorRows() + "\n");
+        fw.write("## acceptor-rows: " + stats.getAcceptorRows() + "\n");
+        fw.close();
+    }
+
+    public AsyncTabWriter getHeaderWriter(int idx) throws IOException {
+        return new AsyncTabWriter(new File(dir, "contrast-" + idx + ".header.txt").getPath());
+    }
+
+    public AsyncTabWriter getRowWriter(int idx) throws IOException {
+        return new AsyncTabWriter(new GZIPOutputStream(new FileOutputStream(new File(dir, "contrast-" + idx + ".rows.txt.gz")), BUFFER_SIZE));
+    }
+
+    public void writeNulls(int idx, JunctionDiff juncDiff, JunctionContrast contrast) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, "contrast-" + idx + ".null")), BUFFER_SIZE));
+        juncDiff.writeNulls(contrast, out);
+        out.close();
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    public Set<String> getContigs() {
+        return contigs;
+    }
+
+    public Set<String> getInputContigs() {
+        return inputContigs;
+    }
+
+    public String getNullType() {
+        return nullType;
+    }
+
+    public boolean isDesign() {
+        return design;
+    }
+
+    public List<String> getContrastNames() {
+        return contrastNames;
+    }
+
+    /**
+     * @return the junction counts for this shard
+     */
+    public JunctionDiffStats getStats() {
+        return stats;
+    }
+
+    public List<String> readHeader(int idx) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        StringLineReader reader = new StringLineReader(new File(dir, "contrast-" + idx + ".header.txt").getPath());
+        for (String line: reader) {
+            lines.add(line);
+        }
+        reader.close();
+        return lines;
+    }
+
+    /**
+     * @return the first line of the rows file (the column names)
+     */
+    public String readColumns(int idx) throws IOException {
+        StringLineReader reader = new StringLineReader(getRowFile(idx));
+        Iterator<String> it = reader.iterator();
+        String line = it.hasNext() ? it.next() : null;
+        reader.close();
+        return line;
+    }
+
+    private String getRowFile(int idx) {
+        return new File(dir, "contrast-" + idx + ".rows.txt.gz").getPath();
+    }
+
+    /**
+     * Adds the junction counts from all of the shards
+     */
+    public static JunctionDiffStats mergeStats(List<JunctionDiffShard> shards) {
+        JunctionDiffStats stats = new JunctionDiffStats();
+        for (JunctionDiffShard shard: shards) {
+            stats.add(shard.stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Merges the pooled nulls for a contrast from all of the shards, and then removes the true
+     * scores. This is the same null distribution as a single run with all contigs.
+     *
+     * @return the donor and acceptor null distributions
+     */
+    public static NullDistribution[] mergeNulls(List<JunctionDiffShard> shards, int idx) throws IOException {
+        NullDistribution donor = null;
+        NullDistribution acceptor = null;
+        List<double[]> donorTrue = new ArrayList<double[]>();
+        List<double[]> acceptorTrue = new ArrayList<double[]>();
+
+        for (JunctionDiffShard shard: shards) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(shard.dir, "contrast-" + idx + ".null")), BUFFER_SIZE));
+            NullDistribution d = shard.readNull(in);
+            NullDistribution a = shard.readNull(in);
+            donorTrue.add(readScores(in));
+            acceptorTrue.add(readScores(in));
+            in.close();
+
+            if (donor == null) {
+                donor = d;
+                acceptor = a;
+            } else {
+                donor.merge(d);
+                acceptor.merge(a);
+            }
+        }
+        donor.set();
+        acceptor.set();
+        return new NullDistribution[] { donor.without(concat(donorTrue)), acceptor.without(concat(acceptorTrue)) };
+    }
+
+    private NullDistribution readNull(DataInputStream in) throws IOException {
+        if (nullType.equals(NULL_SKETCH)) {
+            return SketchNullDistribution.read(in);
+        }
+        return ExactNullDistribution.read(in);
+    }
+
+    private static double[] readScores(DataInputStream in) throws IOException {
+        double[] scores = new double[in.readInt()];
+        for (int i=0; i<scores.length; i++) {
+            scores[i] = in.readDouble();
+        }
+        return scores;
+    }
+
+    private static double[] concat(List<double[]> arrays) {
+        int len = 0;
+        for (double[] arr: arrays) {
+            len += arr.length;
+        }
+        double[] out = new double[len];
+        int offset = 0;
+        for (double[] arr: arrays) {
+            System.arraycopy(arr, 0, out, offset, arr.length);
+            offset += arr.length;
+        }
+        return out;
+    }
+
+    /**
+     * @return the rows for a contrast from all of the shards, in junction order (the same order
+     *         as a single run). The column names aren't included.
+     */
+    public static Iterator<String> mergeRows(List<JunctionDiffShard> shards, int idx) throws IOException {
+        final PriorityQueue<RowReader> queue = new PriorityQueue<RowReader>(Math.max(shards.size(), 1), new Comparator<RowReader>() {
+            @Override
+            public int compare(RowReader o1, RowReader o2) {
+                int val = o1.key.compareTo(o2.key);
+                if (val != 0) {
+                    return val;
+                }
+                return Integer.compare(o1.idx, o2.idx);
+            }});
+
+        for (int i=0; i<shards.size(); i++) {
+            RowReader reader = new RowReader(shards.get(i).getRowFile(idx), i);
+            if (reader.next()) {
+                queue.add(reader);
+            }
+        }
+
+        return new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return !queue.isEmpty();
+            }
+
+            @Override
+            public String next() {
+                if (queue.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                RowReader reader = queue.poll();
+                String line = reader.line;
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+                return line;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static class RowReader {
+        private final Iterator<String> it;
+        private final int idx;
+        private String line = null;
+        private JunctionKey key = null;
+
+        private RowReader(String filename, int idx) throws IOException {
+            this.it = new StringLineReader(filename).iterator();
+            this.idx = idx;
+            // column names
+            if (it.hasNext()) {
+                it.next();
+            }
+        }
+
+        private boolean next() {
+            if (!it.hasNext()) {
+                return false;
+            }
+            line = it.next();
+            int first = line.indexOf('\t');
+            int second = line.indexOf('\t', first + 1);
+            key = new JunctionKey(line.substring(0, first), Strand.parse(line.substring(first + 1, second)));
+            return true;
+        }
+    }
+}
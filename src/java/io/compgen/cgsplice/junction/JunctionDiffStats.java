@@ -22,6 +22,9 @@ public class JunctionDiffStats {
     private int donorAcceptorFilteredJunctions = -1;
     private int validDonors = -1;
     private int validAcceptors = -1;
+    private int donorRows = -1;
+    private int acceptorRows = -1;
+    private int uniqueJunctions = -1;
 
     public void addSample(String filename, String sampleName, int group) {
         samples.add(new JunctionDiffSample(filename, sampleName, group));
@@ -67,6 +70,69 @@ public class JunctionDiffStats {
         this.validAcceptors = validAcceptors;
     }
 
+    void setRows(int donorRows, int acceptorRows, int uniqueJunctions) {
+        this.donorRows = donorRows;
+        this.acceptorRows = acceptorRows;
+        this.uniqueJunctions = uniqueJunctions;
+    }
+
+    /**
+     * @return the number of junctions with a valid donor site (donor output rows)
+     */
+    public int getDonorRows() {
+        return donorRows;
+    }
+
+    /**
+     * @return the number of junctions with a valid acceptor site (acceptor output rows)
+     */
+    public int getAcceptorRows() {
+        return acceptorRows;
+    }
+
+    /**
+     * @return the number of unique junction names (either strand) in the final junctions
+     */
+    public int getUniqueJunctions() {
+        return uniqueJunctions;
+    }
+
+    /**
+     * Adds the counts from another set of junctions (a different contig). Samples aren't added.
+     */
+    void add(JunctionDiffStats other) {
+        totalJunctions = add(totalJunctions, other.totalJunctions);
+        filteredJunctions = add(filteredJunctions, other.filteredJunctions);
+        donorAcceptorFilteredJunctions = add(donorAcceptorFilteredJunctions, other.donorAcceptorFilteredJunctions);
+        validDonors = add(validDonors, other.validDonors);
+        validAcceptors = add(validAcceptors, other.validAcceptors);
+        donorRows = add(donorRows, other.donorRows);
+        acceptorRows = add(acceptorRows, other.acceptorRows);
+        uniqueJunctions = add(uniqueJunctions, other.uniqueJunctions);
+    }
+
+    private static int add(int one, int two) {
+        // -1 => not set
+        if (two < 0) {
+            return one;
+        }
+        return Math.max(one, 0) + two;
+    }
+
+    /**
+     * @return the junction count lines for an output header
+     */
+    public List<String> getSummary() {
+        List<String> lines = new ArrayList<String>();
+        lines.add("## total-junctions: " + totalJunctions);
+        lines.add("## filtered-junctions: " + filteredJunctions);
+        lines.add("## valid-donors: " + validDonors);
+        lines.add("## valid-acceptors: " + validAcceptors);
+        lines.add("## final-junctions: " + donorAcceptorFilteredJunctions);
+        lines.add("## unique-junctions: " + uniqueJunctions);
+        return lines;
+    }
+
     public List<JunctionDiffSample> getSamples() {
         return Collections.unmodifiableList(samples);
     }
@@ -0,0 +1,161 @@
+package io.compgen.cgsplice.junction;
+
+import io.compgen.ngsutils.annotation.GenomeSpan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups junctions into splicing events. Each junction that passed at its donor or acceptor site
+ * is added with the site type it passed at. Junctions are then linked to every junction that 
+ * passed at their donor site or their acceptor site, and an event is one connected set of 
+ * junctions.
+ * 
+ * Junctions are given dense int ids and linked with a union-find, so grouping is near-linear and
+ * doesn't recurse (no risk of overflowing the stack on a dense locus).
+ * 
+ * Optionally, junctions on the same reference and strand with overlapping introns can also be 
+ * grouped together (for exon-skipping or alternative first exon events that don't share an exact 
+ * site). Retained introns (start == end) overlap any intron that includes their position. 
+ * Overlap groups are connected components, so instead of an interval tree, spans are sorted
+ * and swept once with a running max end: O(n log n).
+ * 
+ * @author mbreese
+ *
+ */
+public class JunctionEventGrouper {
+    private final List<JunctionKey> junctions = new ArrayList<JunctionKey>();
+    private final Map<JunctionKey, Integer> ids = new HashMap<JunctionKey, Integer>();
+    private final Map<JunctionDonorAcceptor, Integer> donors = new HashMap<JunctionDonorAcceptor, Integer>();
+    private final Map<JunctionDonorAcceptor, Integer> acceptors = new HashMap<JunctionDonorAcceptor, Integer>();
+    private final DisjointSet sets = new DisjointSet();
+    private boolean groupOverlapping = false;
+
+    public void setGroupOverlapping(boolean groupOverlapping) {
+        this.groupOverlapping = groupOverlapping;
+    }
+
+    /**
+     * Add a junction that passed the filters for a donor or acceptor site
+     * @return the id for this junction
+     */
+    public int add(JunctionKey junction, boolean isDonor) {
+        Integer id = ids.get(junction);
+        if (id == null) {
+            id = sets.add();
+            ids.put(junction, id);
+            junctions.add(junction);
+        }
+
+        if (isDonor) {
+            if (!donors.containsKey(junction.donor)) {
+                donors.put(junction.donor, id);
+            }
+        } else {
+            if (!acceptors.containsKey(junction.acceptor)) {
+                acceptors.put(junction.acceptor, id);
+            }
+        }
+        return id;
+    }
+    
+    public int getJunctionCount() {
+        return junctions.size();
+    }
+
+    public int getDonorCount() {
+        return donors.size();
+    }
+
+    public int getAcceptorCount() {
+        return acceptors.size();
+    }
+    
+    /**
+     * @return the events (junctions sorted within an event, events sorted by their first junction)
+     */
+    public List<List<JunctionKey>> getEvents() {
+        for (int i=0; i<junctions.size(); i++) {
+            JunctionKey junction = junctions.get(i);
+            Integer donor = donors.get(junction.donor);
+            if (donor != null) {
+                sets.union(i, donor);
+            }
+            Integer acceptor = acceptors.get(junction.acceptor);
+            if (acceptor != null) {
+                sets.union(i, acceptor);
+            }
+        }
+        
+        if (groupOverlapping) {
+            groupOverlaps();
+        }
+
+        int[] eventIdx = new int[junctions.size()];
+        for (int i=0; i<eventIdx.length; i++) {
+            eventIdx[i] = -1;
+        }
+
+        List<List<JunctionKey>> events = new ArrayList<List<JunctionKey>>();
+        for (int i=0; i<junctions.size(); i++) {
+            int root = sets.find(i);
+            if (eventIdx[root] == -1) {
+                eventIdx[root] = events.size();
+                events.add(new ArrayList<JunctionKey>());
+            }
+            events.get(eventIdx[root]).add(junctions.get(i));
+        }
+
+        for (List<JunctionKey> event: events) {
+            Collections.sort(event);
+        }
+        Collections.sort(events, new Comparator<List<JunctionKey>>() {
+            @Override
+            public int compare(List<JunctionKey> o1, List<JunctionKey> o2) {
+                return o1.get(0).compareTo(o2.get(0));
+            }});
+
+        return events;
+    }
+
+    private void groupOverlaps() {
+        final GenomeSpan[] spans = new GenomeSpan[junctions.size()];
+        Integer[] order = new Integer[spans.length];
+        for (int i=0; i<spans.length; i++) {
+            spans[i] = GenomeSpan.parse(junctions.get(i).name, junctions.get(i).strand, true);
+            order[i] = i;
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                GenomeSpan one = spans[o1];
+                GenomeSpan two = spans[o2];
+                if (!one.ref.equals(two.ref)) {
+                    return one.ref.compareTo(two.ref);
+                }
+                if (one.strand != two.strand) {
+                    return one.strand.compareTo(two.strand);
+                }
+                return Integer.compare(one.start, two.start);
+            }});
+
+        int last = -1;
+        int maxEnd = -1;
+        for (int idx: order) {
+            GenomeSpan span = spans[idx];
+            if (last > -1 && span.ref.equals(spans[last].ref) && span.strand == spans[last].strand && span.start <= maxEnd) {
+                sets.union(idx, last);
+                maxEnd = Math.max(maxEnd, span.end);
+            } else {
+                maxEnd = span.end;
+            }
+            last = idx;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package io.compgen.cgsplice.junction;
+
+import io.compgen.ngsutils.bam.Strand;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+
+/**
+ * Sorted run files for junction count tables that don't fit in memory.
+ *
+ * Each run is a (sorted) partial junction table written in binary: the junction name, strand,
+ * and the non-zero sample counts. merge() does a k-way merge of all of the runs in junction
+ * order. If the same junction is in more than one run (counts from different samples), the
+ * counts are added together.
+ *
+ * At most MAX_FAN_IN runs are read at once. If there are more runs than that, groups of runs
+ * are first merged into intermediate runs (until there are few enough). File buffers are
+ * sized from the memory budget.
+ *
+ * @author mbreese
+ *
+ */
+public class JunctionSpill {
+    public static final int MAX_FAN_IN = 64;
+
+    private static final int MAX_BUFFER_SIZE = 256 * 1024;
+    private static final int MIN_BUFFER_SIZE = 4 * 1024;
+
+    private final File tmpDir;
+    private final int sampleCount;
+    private final int bufferSize;
+    private final List<File> runs = new ArrayList<File>();
+    private final List<RunReader> openReaders = new ArrayList<RunReader>();
+    private long bytesWritten = 0;
+
+    public JunctionSpill(File tmpDir, int sampleCount) {
+        this(tmpDir, sampleCount, -1);
+    }
+
+    /**
+     * @param maxMemory memory budget (bytes, -1 for none). A quarter of the budget is used 
+     *                  for the file buffers when runs are merged.
+     */
+    public JunctionSpill(File tmpDir, int sampleCount, long maxMemory) {
+        this.tmpDir = tmpDir;
+        this.sampleCount = sampleCount;
+        if (maxMemory > 0) {
+            this.bufferSize = (int) Math.max(MIN_BUFFER_SIZE, Math.min(MAX_BUFFER_SIZE, maxMemory / 4 / (MAX_FAN_IN + 1)));
+        } else {
+            this.bufferSize = MAX_BUFFER_SIZE;
+        }
+    }
+
+    /**
+     * Writes the junctions as a new sorted run.
+     */
+    public void write(SortedMap<JunctionKey, JunctionCounts> junctions) throws IOException {
+        runs.add(writeRun(junctions.entrySet().iterator()));
+    }
+
+    private File writeRun(Iterator<Map.Entry<JunctionKey, JunctionCounts>> junctions) throws IOException {
+        File run = File.createTempFile("cgsplice-run", ".bin", tmpDir);
+        run.deleteOnExit();
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), bufferSize));
+        while (junctions.hasNext()) {
+            Map.Entry<JunctionKey, JunctionCounts> entry = junctions.next();
+            JunctionCounts j = entry.getValue();
+            out.writeUTF(entry.getKey().name);
+            out.writeByte(entry.getKey().strand.ordinal());
+
+            int nonzero = 0;
+            for (int i=0; i<sampleCount; i++) {
+                if (j.counts[i] != 0) {
+                    nonzero++;
+                }
+            }
+            out.writeInt(nonzero);
+            for (int i=0; i<sampleCount; i++) {
+                if (j.counts[i] != 0) {
+                    out.writeInt(i);
+                    out.writeInt(j.counts[i]);
+                }
+            }
+            out.writeInt(j.total);
+            out.writeDouble(j.aveEditDistanceAcc);
+        }
+        out.close();
+        bytesWritten += run.length();
+        return run;
+    }
+
+    public int getRunCount() {
+        return runs.size();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return all junctions from all runs, in sorted order (the same order as a TreeMap<JunctionKey,...>)
+     */
+    public Iterator<Map.Entry<JunctionKey, JunctionCounts>> merge() throws IOException {
+        // readers from an earlier (unfinished) merge
+        closeReaders();
+
+        // merge groups of runs (in order) until there are at most MAX_FAN_IN left
+        while (runs.size() > MAX_FAN_IN) {
+            List<File> merged = new ArrayList<File>();
+            for (int i=0; i<runs.size(); i+=MAX_FAN_IN) {
+                List<File> group = runs.subList(i, Math.min(runs.size(), i + MAX_FAN_IN));
+                if (group.size() == 1) {
+                    merged.add(group.get(0));
+                    continue;
+                }
+                merged.add(writeRun(merge(group)));
+                closeReaders();
+                for (File run: group) {
+                    run.delete();
+                }
+            }
+            runs.clear();
+            runs.addAll(merged);
+        }
+        return merge(runs);
+    }
+
+    private Iterator<Map.Entry<JunctionKey, JunctionCounts>> merge(List<File> files) throws IOException {
+        final PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(Math.max(files.size(), 1), new Comparator<RunReader>() {
+            @Override
+            public int compare(RunReader o1, RunReader o2) {
+                int val = o1.key.compareTo(o2.key);
+                if (val != 0) {
+                    return val;
+                }
+                return Integer.compare(o1.idx, o2.idx);
+            }});
+
+        for (int i=0; i<files.size(); i++) {
+            RunReader reader = new RunReader(files.get(i), i);
+            openReaders.add(reader);
+            if (reader.next()) {
+                queue.add(reader);
+            }
+        }
+
+        return new Iterator<Map.Entry<JunctionKey, JunctionCounts>>() {
+            @Override
+            public boolean hasNext() {
+                return !queue.isEmpty();
+            }
+
+            @Override
+            public Map.Entry<JunctionKey, JunctionCounts> next() {
+                if (queue.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    RunReader reader = queue.poll();
+                    JunctionKey key = reader.key;
+                    JunctionCounts counts = reader.counts;
+                    advance(reader);
+
+                    while (!queue.isEmpty() && queue.peek().key.equals(key)) {
+                        reader = queue.poll();
+                        counts.merge(reader.counts);
+                        advance(reader);
+                    }
+                    return new AbstractMap.SimpleImmutableEntry<JunctionKey, JunctionCounts>(key, counts);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            private void advance(RunReader reader) throws IOException {
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Removes the run files
+     */
+    public void close() {
+        closeReaders();
+        for (File run: runs) {
+            run.delete();
+        }
+        runs.clear();
+    }
+
+    private void closeReaders() {
+        for (RunReader reader: openReaders) {
+            reader.close();
+        }
+        openReaders.clear();
+    }
+
+    private class RunReader {
+        private final DataInputStream in;
+        private final int idx;
+        private JunctionKey key = null;
+        private JunctionCounts counts = null;
+
+        private RunReader(File run, int idx) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), bufferSize));
+            this.idx = idx;
+        }
+
+        private boolean next() throws IOException {
+            String name;
+            try {
+                name = in.readUTF();
+            } catch (EOFException e) {
+                close();
+                return false;
+            }
+            key = new JunctionKey(name, Strand.values()[in.readByte()]);
+            counts = new JunctionCounts(sampleCount);
+            int nonzero = in.readInt();
+            for (int i=0; i<nonzero; i++) {
+                int sample = in.readInt();
+                counts.counts[sample] = in.readInt();
+            }
+            counts.total = in.readInt();
+            counts.aveEditDistanceAcc = in.readDouble();
+            return true;
+        }
+
+        private void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore (read only)
+            }
+        }
+    }
+}
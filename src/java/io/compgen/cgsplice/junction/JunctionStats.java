@@ -47,4 +47,30 @@ public class JunctionStats {
         pctDiff = expPct - controlPct;
         tScore = pctDiff / psd;
      }
+
+    /**
+     * Calculates only the t-score (same arithmetic as the constructor, so the results are 
+     * identical), without allocating a JunctionStats object.
+     */
+    public static double calcTScore(int controlCount, int controlGroupSum, int expCount, int expGroupSum) {
+        double controlPct = 0;
+        double expPct = 0;
+        double controlVar = 0;
+        double expVar = 0;
+
+        if (controlGroupSum > 0) {
+            controlPct = ((double)controlCount / controlGroupSum);
+        }
+        if (expGroupSum > 0) {
+            expPct = ((double)expCount / expGroupSum);
+        }
+        if (controlCount > 0) {
+            controlVar = controlPct * (1-controlPct) / controlCount;
+        }
+        if (expCount > 0) {
+            expVar = expPct * (1-expPct) / expCount;
+        }
+
+        return (expPct - controlPct) / Math.sqrt(controlVar + expVar);
+    }
 }
@@ -0,0 +1,118 @@
+package io.compgen.cgsplice.junction;
+
+import java.util.List;
+
+/**
+ * Scores a block of junctions against all permuted groupings at once.
+ *
+ * For a block of B junctions and P groupings, the group-1 sums are a small matrix product:
+ * (B x S counts) * (S x P group-1 indicators), and group-2 sums are the row totals (for the
+ * samples in the groupings) minus the group-1 sums. The block's counts and site totals are copied into flat arrays and the
+ * groupings are processed in tiles, so both stay in cache while each junction row is
+ * scored. T-scores are calculated with JunctionStats.calcTScore (same values as calcStats).
+ *
+ * Junctions that share a donor/acceptor site share the same site totals array. If sibling
+ * junctions are next to each other, the site's group-1 totals are only summed once per
+ * grouping and reused for the rest of the site.
+ *
+ * @author mbreese
+ *
+ */
+public class PermutationKernel {
+    public static final int BLOCK_SIZE = 64;
+    private static final int PERM_TILE = 256;
+
+    private final int sampleCount;
+    private final int permCount;
+    private final int[] indicator;
+    private final int[] included;
+
+    private final int[] blockCounts;
+    private final int[] blockTotals;
+    private final boolean[] newSite = new boolean[BLOCK_SIZE];
+    private final int[] siteTotals = new int[PERM_TILE];
+    private final int[] countSums = new int[BLOCK_SIZE];
+    private final int[] totalSums = new int[BLOCK_SIZE];
+
+    public PermutationKernel(List<Integer[]> groupings, int sampleCount) {
+        this.sampleCount = sampleCount;
+        this.permCount = groupings.size();
+        this.indicator = new int[permCount * sampleCount];
+        this.included = new int[sampleCount];
+        this.blockCounts = new int[BLOCK_SIZE * sampleCount];
+        this.blockTotals = new int[BLOCK_SIZE * sampleCount];
+
+        for (int p=0; p<permCount; p++) {
+            Integer[] group = groupings.get(p);
+            for (int s=0; s<sampleCount; s++) {
+                if (group[s] == 1) {
+                    indicator[p * sampleCount + s] = 1;
+                } else if (group[s] != 2 && group[s] != 0) {
+                    throw new RuntimeException("Unsupported experimental design: group #"+group[s]);
+                }
+                if (p == 0) {
+                    included[s] = (group[s] == 0) ? 0 : 1;
+                } else if (included[s] != ((group[s] == 0) ? 0 : 1)) {
+                    throw new RuntimeException("All groupings must include the same samples");
+                }
+            }
+        }
+    }
+
+    public int getPermutationCount() {
+        return permCount;
+    }
+
+    /**
+     * Scores junctions [from, to) (at most BLOCK_SIZE). counts and totals are the per-sample
+     * junction counts and site totals (donor or acceptor) for each junction. Junctions from
+     * the same site should be adjacent (and share the same totals array).
+     *
+     * @param scores - output, t-scores in junction-major order: scores[(j - from) * P + p]
+     */
+    public void scoreBlock(List<int[]> counts, List<int[]> totals, int from, int to, double[] scores) {
+        int len = to - from;
+
+        for (int b=0; b<len; b++) {
+            int[] c = counts.get(from + b);
+            int[] t = totals.get(from + b);
+            int cSum = 0;
+            int tSum = 0;
+            for (int s=0; s<sampleCount; s++) {
+                blockCounts[b * sampleCount + s] = c[s];
+                blockTotals[b * sampleCount + s] = t[s];
+                cSum += c[s] * included[s];
+                tSum += t[s] * included[s];
+            }
+            countSums[b] = cSum;
+            totalSums[b] = tSum;
+            newSite[b] = (b == 0 || t != totals.get(from + b - 1));
+        }
+
+        for (int pStart=0; pStart<permCount; pStart+=PERM_TILE) {
+            int pEnd = Math.min(permCount, pStart + PERM_TILE);
+            for (int b=0; b<len; b++) {
+                int row = b * sampleCount;
+                if (newSite[b]) {
+                    for (int p=pStart; p<pEnd; p++) {
+                        int col = p * sampleCount;
+                        int g1Total = 0;
+                        for (int s=0; s<sampleCount; s++) {
+                            g1Total += blockTotals[row + s] * indicator[col + s];
+                        }
+                        siteTotals[p - pStart] = g1Total;
+                    }
+                }
+                for (int p=pStart; p<pEnd; p++) {
+                    int col = p * sampleCount;
+                    int g1Count = 0;
+                    for (int s=0; s<sampleCount; s++) {
+                        g1Count += blockCounts[row + s] * indicator[col + s];
+                    }
+                    int g1Total = siteTotals[p - pStart];
+                    scores[b * permCount + p] = JunctionStats.calcTScore(g1Count, g1Total, countSums[b] - g1Count, totalSums[b] - g1Total);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package io.compgen.cgsplice.junction;
+
+import io.compgen.ngsutils.bam.Strand;
+
+/**
+ * Classifies the intron-end dinucleotides of a junction.
+ * 
+ * The donor/acceptor bases are given as they appear on the (+) strand of the reference: the
+ * first two and the last two bases of the intron. For (-) strand junctions the motif is the
+ * reverse complement. If the junction strand isn't known, the strand that gives the best motif
+ * is used.
+ * 
+ * @author mbreese
+ *
+ */
+public class SpliceMotif {
+    public enum MotifType {
+        CANONICAL("canonical"), SEMI_CANONICAL("semi-canonical"), NON_CANONICAL("non-canonical");
+        
+        private final String label;
+        MotifType(String label) {
+            this.label = label;
+        }
+        
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    public final String motif;
+    public final MotifType type;
+    public final Strand strand;
+    
+    private SpliceMotif(String motif, MotifType type, Strand strand) {
+        this.motif = motif;
+        this.type = type;
+        this.strand = strand;
+    }
+    
+    /**
+     * @param start first two bases of the intron (+ strand)
+     * @param end last two bases of the intron (+ strand)
+     * @param strand the junction strand (Strand.NONE if unknown)
+     */
+    public static SpliceMotif classify(byte[] start, byte[] end, Strand strand) {
+        String plus = dinucleotide(start, false) + "-" + dinucleotide(end, false);
+        String minus = dinucleotide(end, true) + "-" + dinucleotide(start, true);
+        
+        if (strand == Strand.PLUS) {
+            return new SpliceMotif(plus, getType(plus), Strand.PLUS);
+        } else if (strand == Strand.MINUS) {
+            return new SpliceMotif(minus, getType(minus), Strand.MINUS);
+        }
+
+        MotifType plusType = getType(plus);
+        MotifType minusType = getType(minus);
+        if (minusType.compareTo(plusType) < 0) {
+            return new SpliceMotif(minus, minusType, Strand.MINUS);
+        } else if (plusType != MotifType.NON_CANONICAL) {
+            return new SpliceMotif(plus, plusType, Strand.PLUS);
+        }
+        return new SpliceMotif(plus, plusType, Strand.NONE);
+    }
+
+    public static MotifType getType(String motif) {
+        switch (motif) {
+        case "GT-AG":
+            return MotifType.CANONICAL;
+        case "GC-AG":
+        case "AT-AC":
+            return MotifType.SEMI_CANONICAL;
+        default:
+            return MotifType.NON_CANONICAL;
+        }
+    }
+
+    private static String dinucleotide(byte[] bases, boolean revcomp) {
+        if (revcomp) {
+            return "" + complement(bases[1]) + complement(bases[0]);
+        }
+        return "" + upper(bases[0]) + upper(bases[1]);
+    }
+    
+    private static char upper(byte b) {
+        return Character.toUpperCase((char) b);
+    }
+
+    private static char complement(byte b) {
+        switch (upper(b)) {
+        case 'A':
+            return 'T';
+        case 'C':
+            return 'G';
+        case 'G':
+            return 'C';
+        case 'T':
+            return 'A';
+        default:
+            return 'N';
+        }
+    }
+}
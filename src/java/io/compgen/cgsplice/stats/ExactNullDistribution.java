@@ -0,0 +1,179 @@
+package io.compgen.cgsplice.stats;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Null distribution that keeps every permuted score (as |score|) in a sorted primitive array.
+ * P-values are found with a binary search instead of a linear scan.
+ * 
+ * P-values are the same as PermutedNullDistribution (ngsutils), including how NaN scores are 
+ * handled: a NaN test score, or any NaN in the null, gives (pseudocount / N).
+ * 
+ * A distribution can be shared by multiple tests that only differ by a few scores. without()
+ * returns a view of this distribution with the given scores removed (the array isn't copied).
+ * 
+ * @author mbreese
+ *
+ */
+public class ExactNullDistribution implements NullDistribution {
+    private double[] scores;
+    private int size = 0;
+    private int nanCount = 0;
+    private boolean set = false;
+    private int pseudocount = 1;
+
+    private final ExactNullDistribution parent;
+
+    public ExactNullDistribution() {
+        this(1024);
+    }
+
+    public ExactNullDistribution(int initialCapacity) {
+        this.scores = new double[Math.max(initialCapacity, 16)];
+        this.parent = null;
+    }
+
+    private ExactNullDistribution(ExactNullDistribution parent, double[] removed) {
+        this.parent = parent;
+        this.scores = new double[Math.max(removed.length, 16)];
+        this.pseudocount = parent.pseudocount;
+        for (double score: removed) {
+            add(score);
+        }
+        set();
+    }
+
+    public void setPseudocount(int val) {
+        this.pseudocount = val;
+    }
+
+    public void add(double score) {
+        if (set) {
+            throw new RuntimeException("Cannot add new scores - pool is fixed!");
+        }
+        if (Double.isNaN(score)) {
+            nanCount++;
+            return;
+        }
+        if (size == scores.length) {
+            scores = Arrays.copyOf(scores, scores.length * 2);
+        }
+        scores[size++] = Math.abs(score);
+    }
+
+    @Override
+    public void add(double[] vals, int off, int len) {
+        for (int i=off; i<off+len; i++) {
+            add(vals[i]);
+        }
+    }
+
+    @Override
+    public void set() {
+        if (!set) {
+            Arrays.sort(scores, 0, size);
+            set = true;
+        }
+    }
+
+    /**
+     * Returns a view of this distribution with one copy of each of the given scores removed.
+     * The removed scores must have been added to this distribution.
+     */
+    @Override
+    public ExactNullDistribution without(double[] removed) {
+        set();
+        return new ExactNullDistribution(this, removed);
+    }
+
+    @Override
+    public void merge(NullDistribution other) {
+        if (set) {
+            throw new RuntimeException("Cannot add new scores - pool is fixed!");
+        }
+        ExactNullDistribution o = (ExactNullDistribution) other;
+        if (o.parent != null) {
+            throw new IllegalArgumentException("Cannot merge a view of a distribution");
+        }
+        if (size + o.size > scores.length) {
+            scores = Arrays.copyOf(scores, Math.max(scores.length * 2, size + o.size));
+        }
+        System.arraycopy(o.scores, 0, scores, size, o.size);
+        size += o.size;
+        nanCount += o.nanCount;
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        if (parent != null) {
+            throw new IllegalStateException("Cannot write a view of a distribution");
+        }
+        out.writeInt(size);
+        out.writeInt(nanCount);
+        for (int i=0; i<size; i++) {
+            out.writeDouble(scores[i]);
+        }
+    }
+
+    public static ExactNullDistribution read(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        int nanCount = in.readInt();
+        ExactNullDistribution dist = new ExactNullDistribution(size);
+        for (int i=0; i<size; i++) {
+            dist.scores[i] = in.readDouble();
+        }
+        dist.size = size;
+        dist.nanCount = nanCount;
+        return dist;
+    }
+
+    @Override
+    public long size() {
+        if (parent != null) {
+            return parent.size() - size - nanCount;
+        }
+        return size + nanCount;
+    }
+
+    @Override
+    public double pvalue(double test) {
+        set();
+        long count = 0;
+        if (!Double.isNaN(test) && nans() == 0) {
+            count = countAtLeast(Math.abs(test));
+        }
+        return Math.min(1, ((double) pseudocount + count) / size());
+    }
+
+    private long nans() {
+        if (parent != null) {
+            return parent.nans() - nanCount;
+        }
+        return nanCount;
+    }
+
+    private long countAtLeast(double test) {
+        if (parent != null) {
+            return parent.countAtLeast(test) - localCountAtLeast(test);
+        }
+        return localCountAtLeast(test);
+    }
+
+    private int localCountAtLeast(double test) {
+        // first index with scores[i] >= test
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (scores[mid] < test) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return size - lo;
+    }
+}
@@ -0,0 +1,44 @@
+package io.compgen.cgsplice.stats;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A (two-tailed) null distribution of permuted test scores. Scores are added, and then the
+ * pool is fixed with set() (or the first p-value).
+ * 
+ * @author mbreese
+ *
+ */
+public interface NullDistribution {
+    public void add(double[] vals, int off, int len);
+
+    public void set();
+
+    /**
+     * @return a distribution with one copy of each of the given scores removed (they must have
+     *         been added to this distribution).
+     */
+    public NullDistribution without(double[] removed);
+
+    /**
+     * Adds all of the scores from another distribution of the same type (ex: a null from a 
+     * different set of contigs).
+     */
+    public void merge(NullDistribution other);
+
+    /**
+     * Writes the scores so that they can be read and merged later (see: read() for each type).
+     */
+    public void write(DataOutputStream out) throws IOException;
+
+    /**
+     * @return the p-value for a test score: (pseudocount + #{|null| >= |test|}) / N, capped at 1.
+     */
+    public double pvalue(double test);
+    
+    /**
+     * @return the number of scores in the distribution
+     */
+    public long size();
+}
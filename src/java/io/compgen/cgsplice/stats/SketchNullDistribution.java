@@ -0,0 +1,218 @@
+package io.compgen.cgsplice.stats;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Fixed-size null distribution that keeps a log-scale histogram of |score| instead of the
+ * scores themselves. Memory depends only on the relative error a, not on the number of scores 
+ * added: there are about 20.7/a bins, at 16 bytes per bin (ex: 330 KB for a=0.001, 33 MB for
+ * the smallest allowed error, a=1e-5).
+ *
+ * Bin i holds the scores in (gamma^(i-1), gamma^i], with gamma = (1+a)/(1-a) for a relative
+ * error a. Scores below 1e-9 (including 0) share one bin, scores above 1e9 share one bin, and
+ * infinite scores have their own bin. NaNs are counted separately, and are handled the same
+ * way as ExactNullDistribution (any NaN gives pseudocount / N).
+ *
+ * Accuracy: the count for a test score includes every score in the test score's bin, so
+ * p-values are never smaller than the exact p-value. For |t| between 1e-9 and 1e9:
+ *
+ *     p_exact(|t|) <= p_sketch(|t|) <= p_exact(|t| / gamma)
+ *
+ * (gamma is about 1+2a) -- the sketch p-value is the exact p-value for a score within a
+ * relative error of about 2a of the test score. Scores that are exactly 0 or infinite are exact.
+ *
+ * @author mbreese
+ *
+ */
+public class SketchNullDistribution implements NullDistribution {
+    public static final double DEFAULT_RELATIVE_ERROR = 0.001;
+    public static final double MIN_RELATIVE_ERROR = 1e-5;
+
+    private static final double MIN_VALUE = 1e-9;
+    private static final double MAX_VALUE = 1e9;
+
+    private final double relativeError;
+    private final double logGamma;
+    private final int minIndex;
+    private final int overflowBin;
+    private final int infiniteBin;
+
+    private final long[] bins;
+    private long[] atLeast = null;
+    private long nanCount = 0;
+    private long total = -1;
+    private int pseudocount = 1;
+
+    public SketchNullDistribution() {
+        this(DEFAULT_RELATIVE_ERROR);
+    }
+
+    public SketchNullDistribution(double relativeError) {
+        if (relativeError < MIN_RELATIVE_ERROR || relativeError > 0.5) {
+            throw new IllegalArgumentException("Relative error must be between " + MIN_RELATIVE_ERROR + " and 0.5");
+        }
+        this.relativeError = relativeError;
+        this.logGamma = Math.log((1 + relativeError) / (1 - relativeError));
+        this.minIndex = (int) Math.ceil(Math.log(MIN_VALUE) / logGamma);
+        int maxIndex = (int) Math.ceil(Math.log(MAX_VALUE) / logGamma);
+
+        // 0: below MIN_VALUE, 1..n: log bins, n+1: above MAX_VALUE, n+2: infinite
+        this.overflowBin = maxIndex - minIndex + 2;
+        this.infiniteBin = overflowBin + 1;
+        this.bins = new long[infiniteBin + 1];
+    }
+
+    private SketchNullDistribution(SketchNullDistribution parent) {
+        this.relativeError = parent.relativeError;
+        this.logGamma = parent.logGamma;
+        this.minIndex = parent.minIndex;
+        this.overflowBin = parent.overflowBin;
+        this.infiniteBin = parent.infiniteBin;
+        this.bins = parent.bins.clone();
+        this.nanCount = parent.nanCount;
+        this.pseudocount = parent.pseudocount;
+    }
+
+    public double getRelativeError() {
+        return relativeError;
+    }
+
+    public void setPseudocount(int val) {
+        this.pseudocount = val;
+    }
+
+    private int bin(double score) {
+        double val = Math.abs(score);
+        if (Double.isInfinite(val)) {
+            return infiniteBin;
+        }
+        if (val < MIN_VALUE) {
+            return 0;
+        }
+        if (val > MAX_VALUE) {
+            return overflowBin;
+        }
+        int idx = (int) Math.ceil(Math.log(val) / logGamma) - minIndex + 1;
+        // guard against rounding at the edges
+        return Math.max(1, Math.min(overflowBin - 1, idx));
+    }
+
+    public void add(double score) {
+        if (atLeast != null) {
+            throw new RuntimeException("Cannot add new scores - pool is fixed!");
+        }
+        if (Double.isNaN(score)) {
+            nanCount++;
+            return;
+        }
+        bins[bin(score)]++;
+    }
+
+    @Override
+    public void add(double[] vals, int off, int len) {
+        for (int i=off; i<off+len; i++) {
+            add(vals[i]);
+        }
+    }
+
+    @Override
+    public void set() {
+        if (atLeast == null) {
+            atLeast = new long[bins.length + 1];
+            for (int i=bins.length-1; i>=0; i--) {
+                atLeast[i] = atLeast[i+1] + bins[i];
+            }
+            total = atLeast[0] + nanCount;
+        }
+    }
+
+    /**
+     * Returns a copy of this distribution with the given scores removed (the bins are copied,
+     * so this is O(bins), not O(scores)).
+     */
+    @Override
+    public SketchNullDistribution without(double[] removed) {
+        SketchNullDistribution copy = new SketchNullDistribution(this);
+        for (double score: removed) {
+            if (Double.isNaN(score)) {
+                copy.nanCount--;
+            } else {
+                copy.bins[copy.bin(score)]--;
+            }
+        }
+        copy.set();
+        return copy;
+    }
+
+    @Override
+    public void merge(NullDistribution other) {
+        if (atLeast != null) {
+            throw new RuntimeException("Cannot add new scores - pool is fixed!");
+        }
+        SketchNullDistribution o = (SketchNullDistribution) other;
+        if (o.relativeError != relativeError) {
+            throw new IllegalArgumentException("Cannot merge distributions with different relative errors: " + relativeError + ", " + o.relativeError);
+        }
+        for (int i=0; i<bins.length; i++) {
+            bins[i] += o.bins[i];
+        }
+        nanCount += o.nanCount;
+    }
+
+    /**
+     * Writes the relative error and the non-empty bins
+     */
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeDouble(relativeError);
+        out.writeLong(nanCount);
+        int nonzero = 0;
+        for (long count: bins) {
+            if (count != 0) {
+                nonzero++;
+            }
+        }
+        out.writeInt(nonzero);
+        for (int i=0; i<bins.length; i++) {
+            if (bins[i] != 0) {
+                out.writeInt(i);
+                out.writeLong(bins[i]);
+            }
+        }
+    }
+
+    public static SketchNullDistribution read(DataInputStream in) throws IOException {
+        SketchNullDistribution dist = new SketchNullDistribution(in.readDouble());
+        dist.nanCount = in.readLong();
+        int nonzero = in.readInt();
+        for (int i=0; i<nonzero; i++) {
+            int idx = in.readInt();
+            dist.bins[idx] = in.readLong();
+        }
+        return dist;
+    }
+
+    @Override
+    public long size() {
+        if (atLeast != null) {
+            return total;
+        }
+        long size = nanCount;
+        for (long count: bins) {
+            size += count;
+        }
+        return size;
+    }
+
+    @Override
+    public double pvalue(double test) {
+        set();
+        long count = 0;
+        if (!Double.isNaN(test) && nanCount == 0) {
+            count = atLeast[bin(test)];
+        }
+        return Math.min(1, ((double) pseudocount + count) / size());
+    }
+}
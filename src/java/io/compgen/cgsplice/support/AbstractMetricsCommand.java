@@ -0,0 +1,33 @@
+package io.compgen.cgsplice.support;
+
+import io.compgen.cmdline.annotation.Option;
+import io.compgen.cmdline.impl.AbstractOutputCommand;
+
+import java.io.IOException;
+
+/**
+ * Output command that tracks per-phase metrics. Tab-delimited outputs get the metrics as
+ * trailing "## metrics-..." lines (Metrics.write), and all commands can write them to
+ * a JSON file with --metrics-json.
+ *
+ * @author mbreese
+ *
+ */
+public abstract class AbstractMetricsCommand extends AbstractOutputCommand {
+    protected final Metrics metrics = new Metrics();
+    private String metricsJsonFilename = null;
+
+    @Option(desc="Write timing and resource metrics to this file (JSON)", name="metrics-json", helpValue="fname")
+    public void setMetricsJsonFilename(String metricsJsonFilename) {
+        this.metricsJsonFilename = metricsJsonFilename;
+    }
+
+    /**
+     * Writes the JSON file (if --metrics-json was given). This should be called at the end of exec().
+     */
+    protected void writeMetricsJson() throws IOException {
+        if (metricsJsonFilename != null) {
+            metrics.writeJson(metricsJsonFilename);
+        }
+    }
+}
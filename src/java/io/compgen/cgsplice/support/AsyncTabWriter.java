@@ -0,0 +1,288 @@
+package io.compgen.cgsplice.support;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Drop-in replacement for TabWriter that formats cells straight into reusable byte buffers
+ * (ints and longs are converted to ASCII directly, without an intermediate String). Full
+ * buffers are handed off to a background thread that writes them to the output stream, so
+ * the calling thread only waits on I/O if all of the buffers are in flight.
+ *
+ * Output is byte-identical to TabWriter: a cell is only prefixed with a tab if the line isn't
+ * empty, eol() skips empty lines, and write_line() is written ahead of any partial line.
+ *
+ * Any I/O error from the writer thread is re-thrown on the next hand-off or on close(). The
+ * charset must be ASCII-compatible (numbers and delimiters are always written as ASCII).
+ *
+ * @author mbreese
+ *
+ */
+public class AsyncTabWriter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int BUFFER_COUNT = 4;
+    private static final byte DELIM = '\t';
+    private static final byte EOL = '\n';
+
+    private static class Chunk {
+        private byte[] buf = new byte[BUFFER_SIZE];
+        private int len = 0;
+    }
+
+    private static final Chunk POISON = new Chunk();
+
+    private final OutputStream out;
+    private final Charset charset;
+
+    private final BlockingQueue<Chunk> full = new ArrayBlockingQueue<Chunk>(BUFFER_COUNT + 1);
+    private final BlockingQueue<Chunk> free = new ArrayBlockingQueue<Chunk>(BUFFER_COUNT);
+    private final Thread thread;
+    private volatile IOException error = null;
+
+    private Chunk chunk = new Chunk();
+    private byte[] line = new byte[1024];
+    private int lineLen = 0;
+    private final byte[] digits = new byte[20];
+    private boolean closed = false;
+    private long bytesWritten = 0;
+
+    public AsyncTabWriter() {
+        this(System.out, Charset.defaultCharset());
+    }
+
+    public AsyncTabWriter(String filename) throws FileNotFoundException {
+        this(new FileOutputStream(filename), Charset.defaultCharset());
+    }
+
+    public AsyncTabWriter(OutputStream out) {
+        this(out, Charset.defaultCharset());
+    }
+
+    public AsyncTabWriter(OutputStream out, Charset charset) {
+        this.out = out;
+        this.charset = charset;
+
+        for (int i=1; i<BUFFER_COUNT; i++) {
+            free.add(new Chunk());
+        }
+
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeChunks();
+            }}, "AsyncTabWriter");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private void writeChunks() {
+        try {
+            while (true) {
+                Chunk c = full.take();
+                if (c == POISON) {
+                    break;
+                }
+                if (error == null) {
+                    EventRecorder.Span span = Events.outputFlush();
+                    try {
+                        out.write(c.buf, 0, c.len);
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                    span.end(0, c.len);
+                }
+                c.len = 0;
+                free.put(c);
+            }
+        } catch (InterruptedException e) {
+            error = new IOException(e);
+        }
+    }
+
+    public void write_line(String val) throws IOException {
+        byte[] b = val.getBytes(charset);
+        reserve(b.length + 1);
+        System.arraycopy(b, 0, chunk.buf, chunk.len, b.length);
+        chunk.len += b.length;
+        chunk.buf[chunk.len++] = EOL;
+        bytesWritten += b.length + 1;
+    }
+
+    public void write(String... vals) {
+        for (String val: vals) {
+            delimit();
+            appendString(val);
+        }
+    }
+
+    public void write(int val) {
+        write((long) val);
+    }
+
+    public void write(long val) {
+        delimit();
+        appendLong(val);
+    }
+
+    /**
+     * Integral values and special values are converted directly. Everything else falls back to
+     * Double.toString() (the shortest round-trip representation), but is still copied into
+     * the line buffer without any String concatenation.
+     */
+    public void write(double val) {
+        delimit();
+        if (val == 0.0) {
+            appendAscii(1 / val < 0 ? "-0.0" : "0.0");
+        } else if (Double.isNaN(val)) {
+            appendAscii("NaN");
+        } else if (Double.isInfinite(val)) {
+            appendAscii(val > 0 ? "Infinity" : "-Infinity");
+        } else if (val == Math.rint(val) && Math.abs(val) < 1e7) {
+            // Double.toString switches to scientific notation at 10^7
+            appendLong((long) val);
+            ensureLine(2);
+            line[lineLen++] = '.';
+            line[lineLen++] = '0';
+        } else {
+            appendAscii(Double.toString(val));
+        }
+    }
+
+    public void write(float val) {
+        delimit();
+        appendAscii(Float.toString(val));
+    }
+
+    public void eol() throws IOException {
+        if (lineLen > 0) {
+            reserve(lineLen + 1);
+            System.arraycopy(line, 0, chunk.buf, chunk.len, lineLen);
+            chunk.len += lineLen;
+            chunk.buf[chunk.len++] = EOL;
+            bytesWritten += lineLen + 1;
+            lineLen = 0;
+        }
+    }
+
+    /**
+     * @return the number of bytes written so far (complete lines only)
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        eol();
+        closed = true;
+        try {
+            if (chunk.len > 0) {
+                full.put(chunk);
+            }
+            full.put(POISON);
+            thread.join();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        checkError();
+
+        if (out == System.out) {
+            out.flush();
+        } else {
+            out.close();
+        }
+    }
+
+    private void checkError() throws IOException {
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Makes sure there is room for len more bytes in the current chunk, handing the chunk off
+     * to the writer thread if it's full.
+     */
+    private void reserve(int len) throws IOException {
+        if (closed) {
+            throw new IOException("Writer is closed");
+        }
+        if (chunk.len + len > chunk.buf.length && chunk.len > 0) {
+            checkError();
+            try {
+                full.put(chunk);
+                chunk = free.take();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+        if (len > chunk.buf.length) {
+            chunk.buf = Arrays.copyOf(chunk.buf, len);
+        }
+    }
+
+    private void delimit() {
+        if (lineLen > 0) {
+            ensureLine(1);
+            line[lineLen++] = DELIM;
+        }
+    }
+
+    private void ensureLine(int len) {
+        if (lineLen + len > line.length) {
+            line = Arrays.copyOf(line, Math.max(line.length * 2, lineLen + len));
+        }
+    }
+
+    private void appendString(String val) {
+        boolean simple = true;
+        for (int i=0; i<val.length() && simple; i++) {
+            if (val.charAt(i) >= 0x80) {
+                simple = false;
+            }
+        }
+        if (simple) {
+            appendAscii(val);
+            return;
+        }
+        byte[] b = val.getBytes(charset);
+        ensureLine(b.length);
+        System.arraycopy(b, 0, line, lineLen, b.length);
+        lineLen += b.length;
+    }
+
+    private void appendAscii(String val) {
+        ensureLine(val.length());
+        for (int i=0; i<val.length(); i++) {
+            line[lineLen++] = (byte) val.charAt(i);
+        }
+    }
+
+    private void appendLong(long val) {
+        if (val == Long.MIN_VALUE) {
+            appendAscii(Long.toString(val));
+            return;
+        }
+        ensureLine(20);
+        if (val < 0) {
+            line[lineLen++] = '-';
+            val = -val;
+        }
+        int pos = digits.length;
+        do {
+            digits[--pos] = (byte) ('0' + (val % 10));
+            val /= 10;
+        } while (val > 0);
+        int len = digits.length - pos;
+        System.arraycopy(digits, pos, line, lineLen, len);
+        lineLen += len;
+    }
+}
@@ -0,0 +1,73 @@
+package io.compgen.cgsplice.support;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+
+/**
+ * Wrapper main for child JVMs started by the bench command. Runs the real main class and, on
+ * exit, writes peak memory usage to a stats file (the parent can't see the child's
+ * /proc entries after it exits).
+ *
+ * Usage: BenchChild stats-file main-class args...
+ *
+ * The main class is loaded by name, so a reference build that is ahead of this class on
+ * the classpath is the one that runs.
+ *
+ * @author mbreese
+ *
+ */
+public class BenchChild {
+    public static void main(final String[] args) throws Throwable {
+        final String statsFile = args[0];
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                try {
+                    writeStats(statsFile);
+                } catch (IOException e) {
+                    System.err.println("Unable to write stats: " + e.getMessage());
+                }
+            }
+        });
+
+        try {
+            Class.forName(args[1]).getMethod("main", String[].class).invoke(null, (Object) Arrays.copyOfRange(args, 2, args.length));
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void writeStats(String statsFile) throws IOException {
+        FileWriter writer = new FileWriter(statsFile);
+        writer.write("peak_rss_kb\t" + readVmHWM() + "\n");
+        writer.write("peak_heap\t" + Metrics.getPeakHeap() + "\n");
+        writer.write("gc_ms\t" + Metrics.getGCMillis() + "\n");
+        writer.close();
+    }
+
+    /**
+     * @return peak resident set size (kB) from /proc/self/status, or -1 if it isn't available
+     */
+    private static long readVmHWM() {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("VmHWM:")) {
+                        return Long.parseLong(line.substring(6).replace("kB", "").trim());
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not on Linux
+        }
+        return -1;
+    }
+}
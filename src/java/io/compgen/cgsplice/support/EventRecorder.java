@@ -0,0 +1,37 @@
+package io.compgen.cgsplice.support;
+
+/**
+ * Marks units of work (files, contigs, permutation blocks, output flushes) so they can be
+ * recorded by a profiler. See: Events.
+ *
+ * Each method starts an event on the current thread and returns a span that must be ended
+ * on the same thread. If the event isn't being recorded, a shared no-op span is returned.
+ *
+ * @author mbreese
+ *
+ */
+public interface EventRecorder {
+    public interface Span {
+        public void end(long records, long bytes);
+    }
+
+    /**
+     * Parsing a junction-count file (records: junction lines, bytes: file size)
+     */
+    public Span fileParse(String filename);
+
+    /**
+     * Counting junctions for one contig (records: junctions found)
+     */
+    public Span contigCount(String contig);
+
+    /**
+     * Scoring a block of junctions against all permuted groupings (records: t-scores)
+     */
+    public Span permutationBlock(int junctions, int permutations);
+
+    /**
+     * Writing a buffer to an output stream (bytes: buffer size)
+     */
+    public Span outputFlush();
+}
@@ -0,0 +1,79 @@
+package io.compgen.cgsplice.support;
+
+/**
+ * Static access to the EventRecorder.
+ *
+ * If the JFR recorder (src/jfr, needs Java 11+) is on the classpath and jdk.jfr is available,
+ * events are recorded as custom JFR events (io.compgen.cgsplice.*) whenever a flight recording
+ * is running. Otherwise, every call returns the same no-op span. Set -Dcgsplice.jfr=false to
+ * always use the no-op recorder.
+ *
+ * @author mbreese
+ *
+ */
+public class Events {
+    public static final String JFR_RECORDER = "io.compgen.cgsplice.jfr.JfrEventRecorder";
+
+    public static final EventRecorder.Span NOOP_SPAN = new EventRecorder.Span() {
+        @Override
+        public void end(long records, long bytes) {
+        }};
+
+    private static final EventRecorder NOOP = new EventRecorder() {
+        @Override
+        public EventRecorder.Span fileParse(String filename) {
+            return NOOP_SPAN;
+        }
+
+        @Override
+        public EventRecorder.Span contigCount(String contig) {
+            return NOOP_SPAN;
+        }
+
+        @Override
+        public EventRecorder.Span permutationBlock(int junctions, int permutations) {
+            return NOOP_SPAN;
+        }
+
+        @Override
+        public EventRecorder.Span outputFlush() {
+            return NOOP_SPAN;
+        }};
+
+    private static final EventRecorder recorder = load();
+
+    private Events() {
+    }
+
+    private static EventRecorder load() {
+        if ("false".equals(System.getProperty("cgsplice.jfr"))) {
+            return NOOP;
+        }
+        try {
+            return (EventRecorder) Class.forName(JFR_RECORDER).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // not built with src/jfr, or running on Java < 11
+            return NOOP;
+        }
+    }
+
+    public static EventRecorder getRecorder() {
+        return recorder;
+    }
+
+    public static EventRecorder.Span fileParse(String filename) {
+        return recorder.fileParse(filename);
+    }
+
+    public static EventRecorder.Span contigCount(String contig) {
+        return recorder.contigCount(contig);
+    }
+
+    public static EventRecorder.Span permutationBlock(int junctions, int permutations) {
+        return recorder.permutationBlock(junctions, permutations);
+    }
+
+    public static EventRecorder.Span outputFlush() {
+        return recorder.outputFlush();
+    }
+}
@@ -0,0 +1,184 @@
+package io.compgen.cgsplice.support;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-phase timing and resource metrics for a command. Phases are started and stopped by
+ * name from the main thread (a phase can be started more than once, and the times are added
+ * together). Each phase tracks wall time, CPU time, and the number of records and bytes
+ * processed.
+ *
+ * CPU time is for the whole process (all threads, including GC and writer threads), so
+ * multi-threaded phases are counted correctly. If the JVM doesn't report process CPU time,
+ * CPU time for the main thread is used instead.
+ *
+ * Peak heap and GC time are read from the JVM when the report is written.
+ *
+ * @author mbreese
+ *
+ */
+public class Metrics {
+    public class Phase {
+        public final String name;
+        private long wallNanos = 0;
+        private long cpuNanos = 0;
+        private long records = 0;
+        private long bytes = 0;
+
+        private long wallStart = -1;
+        private long cpuStart = -1;
+
+        private Phase(String name) {
+            this.name = name;
+        }
+
+        public double getWallSec() {
+            return wallNanos / 1000000000.0;
+        }
+
+        public double getCpuSec() {
+            return cpuNanos / 1000000000.0;
+        }
+
+        public long getRecords() {
+            return records;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+    }
+
+    private final Map<String, Phase> phases = new LinkedHashMap<String, Phase>();
+    private final long wallStart = System.nanoTime();
+    private final long cpuStart = cpuTime();
+
+    public void start(String name) {
+        Phase phase = getPhase(name);
+        phase.wallStart = System.nanoTime();
+        phase.cpuStart = cpuTime();
+    }
+
+    public void stop(String name) {
+        Phase phase = getPhase(name);
+        if (phase.wallStart > -1) {
+            phase.wallNanos += System.nanoTime() - phase.wallStart;
+            phase.cpuNanos += cpuTime() - phase.cpuStart;
+            phase.wallStart = -1;
+        }
+    }
+
+    public void addRecords(String name, long records) {
+        getPhase(name).records += records;
+    }
+
+    public void addBytes(String name, long bytes) {
+        getPhase(name).bytes += bytes;
+    }
+
+    public List<Phase> getPhases() {
+        return new ArrayList<Phase>(phases.values());
+    }
+
+    private Phase getPhase(String name) {
+        Phase phase = phases.get(name);
+        if (phase == null) {
+            phase = new Phase(name);
+            phases.put(name, phase);
+        }
+        return phase;
+    }
+
+    /**
+     * Writes the metrics as "## metrics-..." lines
+     */
+    public void write(AsyncTabWriter writer) throws IOException {
+        for (Phase phase: phases.values()) {
+            writer.write_line("## metrics-phase: " + phase.name + ";wall=" + String.format("%.3f", phase.getWallSec()) + ";cpu=" + String.format("%.3f", phase.getCpuSec())
+                    + ";records=" + phase.records + ";bytes=" + phase.bytes);
+        }
+        writer.write_line("## metrics-total: wall=" + String.format("%.3f", getTotalWallSec()) + ";cpu=" + String.format("%.3f", getTotalCpuSec()));
+        writer.write_line("## metrics-peak-heap: " + getPeakHeap());
+        writer.write_line("## metrics-gc: count=" + getGCCount() + ";time-ms=" + getGCMillis());
+    }
+
+    public void writeJson(String filename) throws IOException {
+        FileWriter json = new FileWriter(filename);
+        json.write("{\n  \"phases\": [\n");
+        int i = 0;
+        for (Phase phase: phases.values()) {
+            json.write("    {\"name\": \"" + phase.name + "\", \"wall_sec\": " + phase.getWallSec() + ", \"cpu_sec\": " + phase.getCpuSec()
+                    + ", \"records\": " + phase.records + ", \"bytes\": " + phase.bytes + "}" + (++i < phases.size() ? "," : "") + "\n");
+        }
+        json.write("  ],\n");
+        json.write("  \"wall_sec\": " + getTotalWallSec() + ",\n");
+        json.write("  \"cpu_sec\": " + getTotalCpuSec() + ",\n");
+        json.write("  \"peak_heap\": " + getPeakHeap() + ",\n");
+        json.write("  \"gc_count\": " + getGCCount() + ",\n");
+        json.write("  \"gc_ms\": " + getGCMillis() + "\n");
+        json.write("}\n");
+        json.close();
+    }
+
+    public double getTotalWallSec() {
+        return (System.nanoTime() - wallStart) / 1000000000.0;
+    }
+
+    public double getTotalCpuSec() {
+        return (cpuTime() - cpuStart) / 1000000000.0;
+    }
+
+    /**
+     * @return the sum of the peak usage of each heap memory pool (bytes)
+     */
+    public static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    public static long getGCMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc.getCollectionTime() > 0) {
+                millis += gc.getCollectionTime();
+            }
+        }
+        return millis;
+    }
+
+    public static long getGCCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc.getCollectionCount() > 0) {
+                count += gc.getCollectionCount();
+            }
+        }
+        return count;
+    }
+
+    private static long cpuTime() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            long nanos = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+            if (nanos > -1) {
+                return nanos;
+            }
+        }
+        return ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+    }
+}
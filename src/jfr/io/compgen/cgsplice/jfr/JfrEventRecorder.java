@@ -0,0 +1,150 @@
+package io.compgen.cgsplice.jfr;
+
+import io.compgen.cgsplice.support.EventRecorder;
+import io.compgen.cgsplice.support.Events;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Records cgsplice work units as custom JFR events. This is compiled separately (Java 11+) and
+ * loaded by name from Events, so the rest of cgsplice still builds and runs on Java 7.
+ *
+ * Each event type's enabled flag is checked before an event is created, so nothing is
+ * allocated unless a recording with these events enabled is running.
+ *
+ * Example:
+ *     java -XX:StartFlightRecording=filename=cgsplice.jfr -jar cgsplice splice-diff ...
+ *     jfr print --events 'io.compgen.cgsplice.*' cgsplice.jfr
+ *
+ * @author mbreese
+ *
+ */
+public class JfrEventRecorder implements EventRecorder {
+    @Name("io.compgen.cgsplice.FileParse")
+    @Label("File Parse")
+    @Description("Parsing a junction-count file")
+    @Category({"cgsplice"})
+    static class FileParseEvent extends Event {
+        @Label("File")
+        String file;
+
+        @Label("Junctions")
+        long records;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("io.compgen.cgsplice.ContigCount")
+    @Label("Contig Count")
+    @Description("Counting junctions for one contig")
+    @Category({"cgsplice"})
+    static class ContigCountEvent extends Event {
+        @Label("Contig")
+        String contig;
+
+        @Label("Junctions")
+        long records;
+    }
+
+    @Name("io.compgen.cgsplice.PermutationBlock")
+    @Label("Permutation Block")
+    @Description("Scoring a block of junctions against all permuted groupings")
+    @Category({"cgsplice"})
+    static class PermutationBlockEvent extends Event {
+        @Label("Junctions")
+        int junctions;
+
+        @Label("Permutations")
+        int permutations;
+
+        @Label("T-Scores")
+        long records;
+    }
+
+    @Name("io.compgen.cgsplice.OutputFlush")
+    @Label("Output Flush")
+    @Description("Writing an output buffer")
+    @Category({"cgsplice"})
+    static class OutputFlushEvent extends Event {
+        @Label("Size")
+        @DataAmount
+        long bytes;
+    }
+
+    private static final EventType FILE_PARSE = EventType.getEventType(FileParseEvent.class);
+    private static final EventType CONTIG_COUNT = EventType.getEventType(ContigCountEvent.class);
+    private static final EventType PERMUTATION_BLOCK = EventType.getEventType(PermutationBlockEvent.class);
+    private static final EventType OUTPUT_FLUSH = EventType.getEventType(OutputFlushEvent.class);
+
+    @Override
+    public Span fileParse(String filename) {
+        if (!FILE_PARSE.isEnabled()) {
+            return Events.NOOP_SPAN;
+        }
+        final FileParseEvent event = new FileParseEvent();
+        event.file = filename;
+        event.begin();
+        return new Span() {
+            @Override
+            public void end(long records, long bytes) {
+                event.records = records;
+                event.bytes = bytes;
+                event.commit();
+            }};
+    }
+
+    @Override
+    public Span contigCount(String contig) {
+        if (!CONTIG_COUNT.isEnabled()) {
+            return Events.NOOP_SPAN;
+        }
+        final ContigCountEvent event = new ContigCountEvent();
+        event.contig = contig;
+        event.begin();
+        return new Span() {
+            @Override
+            public void end(long records, long bytes) {
+                event.records = records;
+                event.commit();
+            }};
+    }
+
+    @Override
+    public Span permutationBlock(int junctions, int permutations) {
+        if (!PERMUTATION_BLOCK.isEnabled()) {
+            return Events.NOOP_SPAN;
+        }
+        final PermutationBlockEvent event = new PermutationBlockEvent();
+        event.junctions = junctions;
+        event.permutations = permutations;
+        event.begin();
+        return new Span() {
+            @Override
+            public void end(long records, long bytes) {
+                event.records = records;
+                event.commit();
+            }};
+    }
+
+    @Override
+    public Span outputFlush() {
+        if (!OUTPUT_FLUSH.isEnabled()) {
+            return Events.NOOP_SPAN;
+        }
+        final OutputFlushEvent event = new OutputFlushEvent();
+        event.begin();
+        return new Span() {
+            @Override
+            public void end(long records, long bytes) {
+                event.bytes = bytes;
+                event.commit();
+            }};
+    }
+}
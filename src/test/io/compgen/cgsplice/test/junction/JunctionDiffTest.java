@@ -21,4 +21,10 @@ public class JunctionDiffTest {
     public void testCalcPermutations() {
         assertEquals(34, JunctionDiff.permuteGroups(new Integer[]{1,1,1,2,2,2,2}).size());
     }
+
+    @Test
+    public void testAllGroupingsExcludedSamples() {
+        assertEquals(6, JunctionDiff.allGroupings(new Integer[]{1,1,0,2,2,0}).size());
+        assertEquals(5, JunctionDiff.permuteGroups(new Integer[]{1,1,0,2,2,0}).size());
+    }
 }
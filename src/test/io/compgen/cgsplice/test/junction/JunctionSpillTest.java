@@ -0,0 +1,153 @@
+package io.compgen.cgsplice.test.junction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import io.compgen.cgsplice.junction.JunctionCounts;
+import io.compgen.cgsplice.junction.JunctionKey;
+import io.compgen.cgsplice.junction.JunctionSpill;
+import io.compgen.ngsutils.bam.Strand;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JunctionSpillTest {
+    private File tmpDir;
+    private JunctionSpill spill;
+
+    @Before
+    public void setUp() throws Exception {
+        tmpDir = File.createTempFile("cgsplice-test", "");
+        tmpDir.delete();
+        tmpDir.mkdir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (spill != null) {
+            spill.close();
+        }
+        for (File f: tmpDir.listFiles()) {
+            f.delete();
+        }
+        tmpDir.delete();
+    }
+
+    private static void add(SortedMap<JunctionKey, JunctionCounts> run, String name, Strand strand, int sample, int count) {
+        JunctionCounts counts = new JunctionCounts(2);
+        counts.addCount(sample, count);
+        run.put(new JunctionKey(name, strand), counts);
+    }
+
+    private static List<Map.Entry<JunctionKey, JunctionCounts>> toList(Iterator<Map.Entry<JunctionKey, JunctionCounts>> it) {
+        List<Map.Entry<JunctionKey, JunctionCounts>> l = new ArrayList<Map.Entry<JunctionKey, JunctionCounts>>();
+        while (it.hasNext()) {
+            l.add(it.next());
+        }
+        return l;
+    }
+
+    @Test
+    public void testMergeDuplicateAcrossContigs() throws IOException {
+        spill = new JunctionSpill(tmpDir, 2);
+
+        SortedMap<JunctionKey, JunctionCounts> run1 = new TreeMap<JunctionKey, JunctionCounts>();
+        add(run1, "chr1:100-200", Strand.PLUS, 0, 3);
+        add(run1, "chr10:100-200", Strand.PLUS, 0, 4);
+        spill.write(run1);
+
+        SortedMap<JunctionKey, JunctionCounts> run2 = new TreeMap<JunctionKey, JunctionCounts>();
+        add(run2, "chr2:100-200", Strand.MINUS, 1, 5);
+        add(run2, "chr1:100-200", Strand.PLUS, 1, 7);
+        spill.write(run2);
+
+        TreeMap<JunctionKey, JunctionCounts> expected = new TreeMap<JunctionKey, JunctionCounts>();
+        expected.putAll(run1);
+        expected.putAll(run2);
+
+        List<Map.Entry<JunctionKey, JunctionCounts>> merged = toList(spill.merge());
+        assertEquals(3, merged.size());
+        assertEquals(new ArrayList<JunctionKey>(expected.keySet()), keys(merged));
+
+        JunctionCounts dup = find(merged, "chr1:100-200").getValue();
+        assertEquals(3, dup.getCount(0));
+        assertEquals(7, dup.getCount(1));
+        assertEquals(10, dup.getTotal());
+    }
+
+    @Test
+    public void testMergeManyRuns() throws IOException {
+        // more runs than the fan-in, so intermediate runs are merged first
+        spill = new JunctionSpill(tmpDir, 2, 1024);
+        int runCount = JunctionSpill.MAX_FAN_IN * 2 + 3;
+
+        String[] contigs = new String[] { "chr1", "chr2", "chr10" };
+        TreeMap<JunctionKey, Integer> expected = new TreeMap<JunctionKey, Integer>();
+        for (int i=0; i<runCount; i++) {
+            SortedMap<JunctionKey, JunctionCounts> run = new TreeMap<JunctionKey, JunctionCounts>();
+            String name = contigs[i % contigs.length] + ":" + (100 + i) + "-500";
+            add(run, name, Strand.PLUS, 0, 1);
+            add(run, "chr2:50-60", Strand.PLUS, i % 2, 1);
+            spill.write(run);
+
+            JunctionKey key = new JunctionKey(name, Strand.PLUS);
+            expected.put(key, 1);
+        }
+        expected.put(new JunctionKey("chr2:50-60", Strand.PLUS), runCount);
+
+        List<Map.Entry<JunctionKey, JunctionCounts>> merged = toList(spill.merge());
+        assertTrue(spill.getRunCount() <= JunctionSpill.MAX_FAN_IN);
+        assertEquals(new ArrayList<JunctionKey>(expected.keySet()), keys(merged));
+        for (Map.Entry<JunctionKey, JunctionCounts> entry: merged) {
+            assertEquals((int) expected.get(entry.getKey()), entry.getValue().getTotal());
+        }
+
+        JunctionCounts dup = find(merged, "chr2:50-60").getValue();
+        assertEquals((runCount + 1) / 2, dup.getCount(0));
+        assertEquals(runCount / 2, dup.getCount(1));
+
+        // the merge can be restarted
+        assertEquals(merged.size(), toList(spill.merge()).size());
+    }
+
+    @Test
+    public void testClose() throws IOException {
+        spill = new JunctionSpill(tmpDir, 2);
+        SortedMap<JunctionKey, JunctionCounts> run = new TreeMap<JunctionKey, JunctionCounts>();
+        add(run, "chr1:100-200", Strand.PLUS, 0, 1);
+        spill.write(run);
+        spill.write(run);
+        assertFalse(tmpDir.listFiles().length == 0);
+
+        spill.merge().next();
+        spill.close();
+        assertEquals(0, tmpDir.listFiles().length);
+    }
+
+    private static List<JunctionKey> keys(List<Map.Entry<JunctionKey, JunctionCounts>> entries) {
+        List<JunctionKey> l = new ArrayList<JunctionKey>();
+        for (Map.Entry<JunctionKey, JunctionCounts> entry: entries) {
+            l.add(entry.getKey());
+        }
+        return l;
+    }
+
+    private static Map.Entry<JunctionKey, JunctionCounts> find(List<Map.Entry<JunctionKey, JunctionCounts>> entries, String name) {
+        for (Map.Entry<JunctionKey, JunctionCounts> entry: entries) {
+            if (entry.getKey().name.equals(name)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,98 @@
+package io.compgen.cgsplice.test.stats;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import io.compgen.cgsplice.stats.ExactNullDistribution;
+import io.compgen.cgsplice.stats.SketchNullDistribution;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SketchNullDistributionTest {
+    private static final double ERROR = 0.01;
+
+    private static double[] scores(long seed, int n) {
+        Random rand = new Random(seed);
+        double[] scores = new double[n];
+        for (int i=0; i<n; i++) {
+            // t-scores over a few orders of magnitude, both signs
+            scores[i] = rand.nextGaussian() * Math.pow(10, rand.nextInt(4) - 1);
+        }
+        return scores;
+    }
+
+    @Test
+    public void testPvalueBound() {
+        double[] scores = scores(1, 20000);
+        ExactNullDistribution exact = new ExactNullDistribution();
+        SketchNullDistribution sketch = new SketchNullDistribution(ERROR);
+        exact.add(scores, 0, scores.length);
+        sketch.add(scores, 0, scores.length);
+        assertEquals(exact.size(), sketch.size());
+
+        double gamma = (1 + ERROR) / (1 - ERROR);
+        double[] tests = scores(2, 2000);
+        for (double test: tests) {
+            double p = sketch.pvalue(test);
+            assertTrue("p_exact(|t|) <= p_sketch: " + test, exact.pvalue(test) <= p);
+            assertTrue("p_sketch <= p_exact(|t|/gamma): " + test, p <= exact.pvalue(Math.abs(test) / gamma));
+        }
+
+        // 0 and infinite scores are exact
+        assertEquals(exact.pvalue(0), sketch.pvalue(0), 0);
+        assertEquals(exact.pvalue(Double.POSITIVE_INFINITY), sketch.pvalue(Double.POSITIVE_INFINITY), 0);
+    }
+
+    @Test
+    public void testNaN() {
+        double[] scores = scores(3, 1000);
+        ExactNullDistribution exact = new ExactNullDistribution();
+        SketchNullDistribution sketch = new SketchNullDistribution(ERROR);
+        exact.add(scores, 0, scores.length);
+        sketch.add(scores, 0, scores.length);
+
+        // NaN test score
+        assertEquals(exact.pvalue(Double.NaN), sketch.pvalue(Double.NaN), 0);
+        assertEquals(1.0 / 1000, sketch.pvalue(Double.NaN), 0);
+
+        // any NaN in the null
+        exact = new ExactNullDistribution();
+        sketch = new SketchNullDistribution(ERROR);
+        exact.add(scores, 0, scores.length);
+        sketch.add(scores, 0, scores.length);
+        exact.add(Double.NaN);
+        sketch.add(Double.NaN);
+        assertEquals(exact.size(), sketch.size());
+        for (int i=0; i<100; i++) {
+            assertEquals(exact.pvalue(scores[i]), sketch.pvalue(scores[i]), 0);
+        }
+        assertEquals(1.0 / 1001, sketch.pvalue(0.0), 0);
+    }
+
+    @Test
+    public void testWithoutAndMerge() {
+        double[] scores = scores(4, 5000);
+        double[] removed = new double[500];
+        System.arraycopy(scores, 0, removed, 0, removed.length);
+
+        SketchNullDistribution all = new SketchNullDistribution(ERROR);
+        all.add(scores, 0, scores.length);
+        SketchNullDistribution rest = new SketchNullDistribution(ERROR);
+        rest.add(scores, removed.length, scores.length - removed.length);
+
+        SketchNullDistribution one = new SketchNullDistribution(ERROR);
+        one.add(scores, 0, 2500);
+        SketchNullDistribution two = new SketchNullDistribution(ERROR);
+        two.add(scores, 2500, 2500);
+        one.merge(two);
+
+        SketchNullDistribution without = all.without(removed);
+        assertEquals(rest.size(), without.size());
+        assertEquals(all.size(), one.size());
+        for (int i=0; i<scores.length; i+=10) {
+            assertEquals(rest.pvalue(scores[i]), without.pvalue(scores[i]), 0);
+            assertEquals(all.pvalue(scores[i]), one.pvalue(scores[i]), 0);
+        }
+    }
+}